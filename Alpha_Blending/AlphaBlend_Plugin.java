@@ -3,13 +3,32 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
+import ij.util.ThreadUtil;
 import java.lang.Number;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class AlphaBlend_Plugin implements ExtendedPlugInFilter {
+public class AlphaBlend_Plugin implements ExtendedPlugInFilter, DialogListener {
     private static int FLAGS =
         DOES_ALL |              //this plugin processes 8-bit, 16-bit, 32-bit gray & 24-bit/pxl RGB
         STACK_REQUIRED;
     ImagePlus imp;
+    // composite from the front and stop once a pixel is opaque, when the
+    // blend function allows it; not the same rounding as back to front
+    static boolean frontToBackOption = true;
+    static final String[] BLENDS = {"Maximum intensity", "Limited alpha", "Alpha"};
+    static int blendOption = 1;
+    static final String[] PROJECTIONS = {"Along Z", "Rotation series"};
+    static int projectionOption = 0;
+    static final String[] AXES = {"X", "Y", "Z"};
+    static int axisOption = 1;
+    static double startAngleOption = 0;
+    static double endAngleOption = 360;
+    static int nAnglesOption = 36;
+    static double mOption = 10;
+    static double fogOption = 1;
+    static boolean previewOption = false;
+    Preview preview;
 
     public int setup(String arg, ImagePlus imp) {
         this.imp = imp;
@@ -24,53 +43,292 @@ public class AlphaBlend_Plugin implements ExtendedPlugInFilter {
         int sx = ip.getWidth();
         int sy = ip.getHeight();
         int sc = imp.getNChannels();
-        int sz = stack.getSize()/sc;
-        IJ.log("nChannels = "+sc+"; nSlices = "+sz);
-
-        BlendFunc blendFunc = 
-            // new MipFunc();
-            new LimitedAlphaFunc();
-            // new AlphaFunc();
-
-        ImagePlus blended = NewImage.createImage(
-            "Blended", 
-            sx, sy, sc, 
-            16,
-            NewImage.FILL_BLACK);
-        if (sc > 1) {
-            blended.setDimensions(sc, 1, 1);
+        int sz = imp.getNSlices();
+        IJ.log("nChannels = "+sc+"; nSlices = "+sz+"; nFrames = "+imp.getNFrames());
+
+        BlendFunc blendFunc = createBlendFunc(blendOption);
+
+        if (projectionOption == 1) {
+            double[] angles = new double[nAnglesOption];
+            for (int a = 0; a < angles.length; ++a)
+                angles[a] = startAngleOption + a * (endAngleOption - startAngleOption) / angles.length;
+            new RotationRenderer(imp, axisOption).render(blendFunc, frontToBackOption, angles).show();
+            return;
+        }
+
+        projectFrames(imp, blendFunc, frontToBackOption).show();
+        // imp.setSlice(stack.getSize());
+        // stack.addSlice("Blended", mipPixels);
+        // imp.setSlice(stack.getSize());
+    }
+
+    /**
+     * Projects every frame of imp along Z into a 16-bit C x T hyperstack.
+     * Frames are composited one after another with compositeBands; while
+     * one frame is composited a FrameLoader reads the next frame's slices,
+     * so a virtual stack is read from disk alongside the compositing.
+     */
+    static ImagePlus projectFrames(ImagePlus imp, BlendFunc blendFunc, boolean frontToBack) {
+        return projectFrames(imp, blendFunc, frontToBack, null);
+    }
+
+    // As above, giving up and returning null once cancelled is set
+    static ImagePlus projectFrames(ImagePlus imp, BlendFunc blendFunc, boolean frontToBack,
+            AtomicBoolean cancelled) {
+        ImageStack stack = imp.getStack();
+        int sc = imp.getNChannels();
+        int sz = imp.getNSlices();
+        int nt = imp.getNFrames();
+        ImageStack out = new ImageStack(stack.getWidth(), stack.getHeight());
+        for (int t = 1; t <= nt; ++t)
+            for (int c = 1; c <= sc; ++c)
+                out.addSlice(nt > 1 ? "t" + t : null, new short[stack.getWidth() * stack.getHeight()]);
+        FrameLoader loader = new FrameLoader(imp, 1);
+        loader.start();
+        for (int t = 1; t <= nt; ++t) {
+            ImageStack frame = loader.frame();
+            if (t < nt) {
+                loader = new FrameLoader(imp, t + 1);
+                loader.start();
+            }
+            if (nt > 1)
+                IJ.showStatus("Blending frame " + t + "/" + nt);
+            ImageStack dest = new ImageStack(stack.getWidth(), stack.getHeight());
+            for (int c = 1; c <= sc; ++c)
+                dest.addSlice(null, out.getPixels((t - 1) * sc + c));
+            compositeBands(frame, sc, sz, blendFunc, dest, frontToBack, cancelled);
+            if (cancelled != null && cancelled.get())
+                return null;
+        }
+        ImagePlus blended = new ImagePlus("Blended", out);
+        blended.setDimensions(sc, 1, nt);
+        if (sc > 1)
             blended = new CompositeImage(blended, CompositeImage.COMPOSITE);
+        if (sc > 1 || nt > 1)
             blended.setOpenAsHyperStack(true);
+        return blended;
+    }
+
+    // Reads the slices of one frame, in channel then Z order, on its own
+    // thread. frame() rethrows whatever stopped the read, so a failed or
+    // interrupted load never hands back a missing frame.
+    static class FrameLoader extends Thread {
+        final ImagePlus imp;
+        final int t;
+        ImageStack frame;
+        Throwable failure;
+
+        FrameLoader(ImagePlus imp, int t) {
+            this.imp = imp;
+            this.t = t;
         }
-        
-        FloatProcessor scratch = new FloatProcessor(sx, sy);
-        // start at back slice, for painters' algorithm
-        for (int z = sz; z >= 1; --z) { // start at back
-        // for (int z = 1; z <= sz; ++z) { // start at front
-            for (int c = 0; c < sc; ++c) {
-                int i = sc*(z-1) + c;
-                ImageProcessor srcSlice = stack.getProcessor(i+1);
-                FloatProcessor srcChannel = srcSlice.toFloat(1, scratch);
-                blended.setPosition(c+1,1,1); // one-based
-                ImageProcessor destChannel = blended.getChannelProcessor();
-                for (int y = 0; y < sy; ++y) {
-                    for (int x = 0; x < sx; ++x) {
-                        boolean debug = true;
-                        if (x != 364) debug = false;
-                        if (y != 153) debug = false;
-                        if (c != 1) debug = false;
-                        float src = srcChannel.getf(x, y);
-                        float dest = destChannel.getf(x, y);
-                        destChannel.setf(x, y, blendFunc.compute(src, dest, debug));
+
+        public void run() {
+            try {
+                ImageStack stack = imp.getStack();
+                ImageStack slices = new ImageStack(stack.getWidth(), stack.getHeight());
+                for (int z = 1; z <= imp.getNSlices(); ++z) {
+                    for (int c = 1; c <= imp.getNChannels(); ++c) {
+                        Object pixels = stack.getPixels(imp.getStackIndex(c, z, t));
+                        if (pixels == null)
+                            throw new IllegalStateException("Could not read slice " + z
+                                + ", channel " + c + " of frame " + t + " of " + imp.getTitle());
+                        slices.addSlice(null, pixels);
                     }
                 }
+                frame = slices;
+            } catch (Throwable e) {
+                failure = e;
             }
-            IJ.showProgress(sz-z+1, sz-1+1);
         }
-        blended.show();
-        // imp.setSlice(stack.getSize());
-        // stack.addSlice("Blended", mipPixels);
-        // imp.setSlice(stack.getSize());
+
+        ImageStack frame() {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupt();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading frame " + t, e);
+            }
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException)failure;
+            if (failure instanceof Error)
+                throw (Error)failure;
+            if (failure != null)
+                throw new IllegalStateException("Could not read frame " + t, failure);
+            return frame;
+        }
+    }
+
+    /**
+     * Back to front composite of sz slices of sc channels, for every
+     * pixel type (the green channel of RGB, as ColorProcessor.toFloat(1)
+     * gives). The image is cut into bands of rows that fit in
+     * cache; threads take bands in turn and composite every Z slice of
+     * every channel for their band, reading the pixel arrays directly
+     * and running the blend function's own loop over the band rather
+     * than calling compute() through the interface for every pixel.
+     * The running result is rounded to 16 bits after each slice, as
+     * writing it into the 16-bit output does.
+     *
+     * With frontToBack, a FrontToBackFunc is instead run from the
+     * front slice, and rows whose pixels are all opaque are dropped from
+     * the rest of the band's slices. The maximum is exact from the front.
+     * Alpha has to round after every slice as back to front does, so its
+     * front pass only finds the depth past which nothing can move the
+     * result by more than a grey level, and the band is then composited
+     * back to front from that depth. The two modes differ by at most the
+     * function's maxError; where that has no bound, as for Alpha with
+     * fog over 1, 16-bit or 32-bit input or sums that can pass 65535,
+     * back to front is used. In debug mode every band is also composited
+     * back to front and any difference over the bound is logged.
+     */
+    static void compositeBands(final ImageStack stack, final int sc, final int sz,
+            final BlendFunc blendFunc, final ImageStack destStack, boolean frontToBack) {
+        compositeBands(stack, sc, sz, blendFunc, destStack, frontToBack, null);
+    }
+
+    static void compositeBands(final ImageStack stack, final int sc, final int sz,
+            final BlendFunc blendFunc, final ImageStack destStack, boolean frontToBack,
+            final AtomicBoolean cancelled) {
+        final int sx = stack.getWidth();
+        final int sy = stack.getHeight();
+        final int bandRows = Math.max(1, 16384 / sx); // 64 kB of float per band
+        final int nBands = (sy + bandRows - 1) / bandRows;
+        final float maxSrc = maxValue(stack.getPixels(1));
+        final FrontToBackFunc frontFunc = frontToBack ? frontToBackFunc(blendFunc, maxSrc, sz) : null;
+        final boolean check = frontFunc != null && IJ.debugMode;
+        final AtomicInteger nextBand = new AtomicInteger(0);
+        final AtomicInteger done = new AtomicInteger(0);
+        Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), nBands));
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread() {
+                public void run() {
+                    float[] src = new float[bandRows * sx];
+                    float[] dest = new float[bandRows * sx];
+                    float[] trans = new float[bandRows * sx];
+                    boolean[] active = new boolean[bandRows];
+                    float[] back = check ? new float[bandRows * sx] : null;
+                    for (int band = nextBand.getAndIncrement(); band < nBands; band = nextBand.getAndIncrement()) {
+                        if (cancelled != null && cancelled.get())
+                            return;
+                        int offset = band * bandRows * sx;
+                        int rows = Math.min(bandRows, sy - band * bandRows);
+                        int n = rows * sx;
+                        for (int c = 0; c < sc; ++c) {
+                            java.util.Arrays.fill(dest, 0, n, 0f);
+                            if (frontFunc == null) {
+                                for (int z = sz; z >= 1; --z) { // start at back
+                                    toFloat(stack.getPixels(sc*(z-1) + c + 1), offset, src, n);
+                                    blendFunc.composite(src, dest, n);
+                                }
+                            }
+                            else {
+                                java.util.Arrays.fill(trans, 0, n, 1f);
+                                java.util.Arrays.fill(active, 0, rows, true);
+                                int nActive = rows;
+                                int depth = 0; // slices run from the front
+                                while (depth < sz && nActive > 0) { // start at front
+                                    Object pixels = stack.getPixels(sc*depth + c + 1);
+                                    ++depth;
+                                    for (int row = 0; row < rows; ++row) {
+                                        if (!active[row])
+                                            continue;
+                                        int from = row * sx;
+                                        toFloat(pixels, offset + from, src, from, sx);
+                                        if (!frontFunc.compositeBehind(src, dest, trans, from, from + sx, maxSrc, sz - depth)) {
+                                            active[row] = false;
+                                            --nActive;
+                                        }
+                                    }
+                                }
+                                if (frontFunc.roundsFromBack()) {
+                                    java.util.Arrays.fill(dest, 0, n, 0f);
+                                    for (int z = depth; z >= 1; --z) {
+                                        toFloat(stack.getPixels(sc*(z-1) + c + 1), offset, src, n);
+                                        blendFunc.composite(src, dest, n);
+                                    }
+                                }
+                                else {
+                                    for (int i = 0; i < n; ++i)
+                                        dest[i] = to16Bit(dest[i]);
+                                }
+                                if (check) {
+                                    java.util.Arrays.fill(back, 0, n, 0f);
+                                    for (int z = sz; z >= 1; --z) {
+                                        toFloat(stack.getPixels(sc*(z-1) + c + 1), offset, src, n);
+                                        blendFunc.composite(src, back, n);
+                                    }
+                                    checkFrontToBack(dest, back, n, frontFunc.maxError(maxSrc, sz));
+                                }
+                            }
+                            short[] out = (short[])destStack.getPixels(c + 1);
+                            for (int i = 0; i < n; ++i)
+                                out[offset + i] = (short)dest[i];
+                        }
+                        IJ.showProgress(done.incrementAndGet(), nBands);
+                    }
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(threads);
+    }
+
+    static void toFloat(Object pixels, int offset, float[] dest, int n) {
+        toFloat(pixels, offset, dest, 0, n);
+    }
+
+    static void toFloat(Object pixels, int offset, float[] dest, int destOffset, int n) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            for (int i = 0; i < n; ++i)
+                dest[destOffset + i] = p[offset + i] & 0xff;
+        }
+        else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            for (int i = 0; i < n; ++i)
+                dest[destOffset + i] = p[offset + i] & 0xffff;
+        }
+        else if (pixels instanceof int[]) {
+            int[] p = (int[])pixels;
+            for (int i = 0; i < n; ++i)
+                dest[destOffset + i] = (p[offset + i] >> 8) & 0xff;
+        }
+        else
+            System.arraycopy((float[])pixels, offset, dest, destOffset, n);
+    }
+
+    // blendFunc as a FrontToBackFunc, if it is one and is within a known
+    // bound of back to front for n slices of values up to maxSrc
+    static FrontToBackFunc frontToBackFunc(BlendFunc blendFunc, float maxSrc, int n) {
+        if (!(blendFunc instanceof FrontToBackFunc))
+            return null;
+        FrontToBackFunc frontFunc = (FrontToBackFunc)blendFunc;
+        return frontFunc.maxError(maxSrc, n) < Float.POSITIVE_INFINITY ? frontFunc : null;
+    }
+
+    // Logs where a front to back result is further than bound from back to front
+    static void checkFrontToBack(float[] front, float[] back, int n, float bound) {
+        float worst = 0;
+        for (int i = 0; i < n; ++i)
+            worst = Math.max(worst, Math.abs(front[i] - back[i]));
+        if (worst > bound)
+            IJ.log("Front to back differs from back to front by " + worst
+                + " grey levels, over the bound of " + bound);
+    }
+
+    // Largest value a slice of this pixel type can hold
+    static float maxValue(Object pixels) {
+        if (pixels instanceof byte[] || pixels instanceof int[])
+            return 255f;
+        if (pixels instanceof short[])
+            return 65535f;
+        return Float.MAX_VALUE;
+    }
+
+    // The value a 16-bit output pixel holds after setf(value)
+    static float to16Bit(float value) {
+        return ((int)(value + 0.5f)) & 0xffff;
     }
 
     @Override
@@ -78,18 +336,498 @@ public class AlphaBlend_Plugin implements ExtendedPlugInFilter {
 
     @Override
     public int showDialog (ImagePlus imp, String command, PlugInFilterRunner pfr) {
+        GenericDialog gd = new GenericDialog("Alpha Blend");
+        gd.addChoice("Blend", BLENDS, BLENDS[blendOption]);
+        gd.addCheckbox("Front to back (stop at opaque pixels)", frontToBackOption);
+        gd.addChoice("Projection", PROJECTIONS, PROJECTIONS[projectionOption]);
+        gd.addChoice("Rotation axis", AXES, AXES[axisOption]);
+        gd.addNumericField("Start angle", startAngleOption, 1, 6, "degrees");
+        gd.addNumericField("End angle", endAngleOption, 1, 6, "degrees");
+        gd.addNumericField("Projections", nAnglesOption, 0);
+        gd.addNumericField("Limited alpha m", mOption, 2);
+        gd.addNumericField("Alpha fog", fogOption, 2);
+        gd.addCheckbox("Preview", previewOption);
+        preview = new Preview(imp);
+        gd.addDialogListener(this);
+        if (previewOption)
+            preview.update();
+        gd.showDialog();
+        preview.stop();
+        if (gd.wasCanceled())
+            return DONE;
+        readOptions(gd);
         return FLAGS;
     }
+
+    // Re-renders the preview whenever a field changes
+    @Override
+    public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
+        readOptions(gd);
+        if (e == null)
+            return true; // dialog closing
+        if (previewOption)
+            preview.update();
+        else
+            preview.stop();
+        return true;
+    }
+
+    void readOptions(GenericDialog gd) {
+        gd.resetCounters();
+        blendOption = gd.getNextChoiceIndex();
+        frontToBackOption = gd.getNextBoolean();
+        projectionOption = gd.getNextChoiceIndex();
+        axisOption = gd.getNextChoiceIndex();
+        startAngleOption = gd.getNextNumber();
+        endAngleOption = gd.getNextNumber();
+        nAnglesOption = Math.max(1, (int)gd.getNextNumber());
+        double m = gd.getNextNumber();
+        if (m > 1)
+            mOption = m; // the blend divides by m - 1
+        double fog = gd.getNextNumber();
+        if (!Double.isNaN(fog))
+            fogOption = fog;
+        previewOption = gd.getNextBoolean();
+    }
+
+    /**
+     * Live preview of the current frame while the dialog is open. Every
+     * change starts a new render on a background thread and cancels the
+     * one before it. A render first blends a copy of the frame shrunk 4
+     * or 8 times in X and Y, cached for the life of the dialog, shows it
+     * scaled up to the size of the full render, and then blends the
+     * frame at full resolution. With a rotation series only the start
+     * angle is previewed.
+     */
+    class Preview {
+        final ImagePlus imp;
+        final Object cacheLock = new Object();
+        ImagePlus frame, small;
+        ImagePlus window;
+        AtomicBoolean cancelled = new AtomicBoolean();
+
+        Preview(ImagePlus imp) {
+            this.imp = imp;
+        }
+
+        synchronized void update() {
+            cancelled.set(true);
+            final AtomicBoolean mine = new AtomicBoolean();
+            cancelled = mine;
+            final BlendFunc blendFunc = createBlendFunc(blendOption);
+            final boolean frontToBack = frontToBackOption;
+            final boolean rotation = projectionOption == 1;
+            final int axis = axisOption;
+            final double angle = startAngleOption;
+            new Thread() {
+                public void run() {
+                    ImagePlus full = frame();
+                    ImagePlus coarse = small();
+                    if (coarse != full) {
+                        ImagePlus result = render(coarse, blendFunc, frontToBack, rotation, axis, angle, mine);
+                        if (result != null) {
+                            // the size the full resolution render will have
+                            int width = full.getWidth(), height = full.getHeight();
+                            if (rotation) {
+                                RotationRenderer renderer = new RotationRenderer(full, axis);
+                                width = renderer.width;
+                                height = renderer.height;
+                            }
+                            show(enlarge(result, width, height), mine);
+                        }
+                    }
+                    ImagePlus result = render(full, blendFunc, frontToBack, rotation, axis, angle, mine);
+                    if (result != null)
+                        show(result, mine);
+                }
+            }.start();
+        }
+
+        synchronized void stop() {
+            cancelled.set(true);
+            if (window != null)
+                window.close();
+            window = null;
+        }
+
+        // The current frame's slices, read once
+        ImagePlus frame() {
+            synchronized (cacheLock) {
+                if (frame != null)
+                    return frame;
+                ImageStack stack = imp.getStack();
+                ImageStack slices = new ImageStack(stack.getWidth(), stack.getHeight());
+                for (int z = 1; z <= imp.getNSlices(); ++z)
+                    for (int c = 1; c <= imp.getNChannels(); ++c)
+                        slices.addSlice(null, stack.getProcessor(imp.getStackIndex(c, z, imp.getFrame())));
+                frame = new ImagePlus(imp.getTitle(), slices);
+                frame.setDimensions(imp.getNChannels(), imp.getNSlices(), 1);
+                frame.setCalibration(imp.getCalibration());
+                return frame;
+            }
+        }
+
+        // The frame shrunk in X and Y, or the frame itself if it is small
+        ImagePlus small() {
+            synchronized (cacheLock) {
+                if (small != null)
+                    return small;
+                ImagePlus full = frame();
+                ImageStack stack = full.getStack();
+                int w = stack.getWidth(), h = stack.getHeight();
+                int factor = (double)w * h * stack.getSize() > (1 << 26) ? 8 : 4;
+                while (factor > 1 && (w / factor < 16 || h / factor < 16))
+                    factor /= 2;
+                if (factor == 1)
+                    small = full;
+                else {
+                    ImageStack shrunk = new ImageStack(w / factor, h / factor);
+                    for (int i = 1; i <= stack.getSize(); ++i) {
+                        ImageProcessor ip = stack.getProcessor(i);
+                        ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+                        shrunk.addSlice(null, ip.resize(w / factor, h / factor, true));
+                    }
+                    small = new ImagePlus(full.getTitle(), shrunk);
+                    small.setDimensions(full.getNChannels(), full.getNSlices(), 1);
+                    ij.measure.Calibration cal = full.getCalibration().copy();
+                    cal.pixelWidth *= (double)w / shrunk.getWidth();
+                    cal.pixelHeight *= (double)h / shrunk.getHeight();
+                    small.setCalibration(cal);
+                }
+                return small;
+            }
+        }
+
+        ImagePlus render(ImagePlus source, BlendFunc blendFunc, boolean frontToBack,
+                boolean rotation, int axis, double angle, AtomicBoolean cancelled) {
+            if (rotation)
+                return new RotationRenderer(source, axis).render(blendFunc, frontToBack,
+                    new double[] {angle}, cancelled);
+            return projectFrames(source, blendFunc, frontToBack, cancelled);
+        }
+
+        ImagePlus enlarge(ImagePlus result, int width, int height) {
+            ImageStack stack = result.getStack();
+            ImageStack large = new ImageStack(width, height);
+            for (int i = 1; i <= stack.getSize(); ++i) {
+                ImageProcessor ip = stack.getProcessor(i);
+                ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+                large.addSlice(null, ip.resize(large.getWidth(), large.getHeight()));
+            }
+            result.setStack(large);
+            return result;
+        }
+
+        synchronized void show(ImagePlus result, AtomicBoolean mine) {
+            if (mine.get())
+                return; // stale
+            if (window == null || window.getWindow() == null) {
+                window = result;
+                window.setTitle("Blend preview");
+                window.show();
+                return;
+            }
+            window.setStack(result.getStack());
+            if (window instanceof CompositeImage)
+                ((CompositeImage)window).resetDisplayRanges();
+            else
+                window.resetDisplayRange();
+            window.updateAndDraw();
+        }
+    }
+
+    BlendFunc createBlendFunc(int blend) {
+        switch (blend) {
+            case 0: return new MipFunc();
+            case 2: return new AlphaFunc((float)fogOption);
+            default: return new LimitedAlphaFunc((float)mOption);
+        }
+    }
+
+    /**
+     * Orthographic projections of the current frame seen from a series
+     * of angles around the X, Y or Z axis, as a 16-bit stack with one
+     * frame per angle. Rays cross the depth the volume spans in their
+     * direction one voxel at a time along the voxel axis they run most
+     * nearly along, sampling the volume trilinearly, so that each sample
+     * stands for one voxel as a slice does along Z, whatever the voxel
+     * depth. Threads take (angle, output row) pairs in turn; for a row,
+     * every sample at one depth is gathered before the blend function
+     * composites the row, so the blend loops and rounding are the same
+     * as along Z. At angle 0 the projection is the plain Z projection,
+     * centred in a canvas large enough for every angle.
+     *
+     * Each channel of the frame is held as float while it is rendered,
+     * four times the memory of an 8-bit stack of the same size.
+     */
+    static class RotationRenderer {
+        final ImageStack stack;
+        final int sc, sx, sy, sz;
+        final int frameOffset;
+        final double aspect;
+        final int axis;
+        final int width, height;
+
+        RotationRenderer(ImagePlus imp, int axis) {
+            stack = imp.getStack();
+            sc = imp.getNChannels();
+            sx = stack.getWidth();
+            sy = stack.getHeight();
+            sz = imp.getNSlices();
+            frameOffset = (imp.getFrame() - 1) * sc * sz;
+            double a = imp.getCalibration().pixelDepth / imp.getCalibration().pixelWidth;
+            aspect = a > 0 && !Double.isInfinite(a) ? a : 1;
+            this.axis = axis;
+            double dz = sz * aspect;
+            int w = sx, h = sy;
+            if (axis == 0)
+                h = (int)Math.ceil(Math.sqrt(sy*sy + dz*dz));
+            else if (axis == 1)
+                w = (int)Math.ceil(Math.sqrt(sx*sx + dz*dz));
+            else
+                w = h = (int)Math.ceil(Math.sqrt(sx*sx + sy*sy));
+            // matching parity keeps samples on voxel centres at angle 0
+            width = w + ((w - sx) & 1);
+            height = h + ((h - sy) & 1);
+        }
+
+        ImagePlus render(BlendFunc blendFunc, boolean frontToBack, double[] angles) {
+            return render(blendFunc, frontToBack, angles, null);
+        }
+
+        // As above, giving up and returning null once cancelled is set
+        ImagePlus render(final BlendFunc blendFunc, boolean frontToBack, final double[] angles,
+                final AtomicBoolean cancelled) {
+            final float maxSrc = maxValue(stack.getPixels(1));
+            int maxSteps = 0;
+            for (double angle : angles)
+                maxSteps = Math.max(maxSteps, steps(voxelDirection(basis(angle)[2])));
+            final FrontToBackFunc frontFunc = frontToBack ? frontToBackFunc(blendFunc, maxSrc, maxSteps) : null;
+            final int bound = maxSteps;
+            final boolean check = frontFunc != null && IJ.debugMode;
+            final ImageStack out = new ImageStack(width, height);
+            for (int a = 0; a < angles.length; ++a)
+                for (int c = 0; c < sc; ++c)
+                    out.addSlice(IJ.d2s(angles[a], 1) + "\u00b0", new short[width * height]);
+            final int nTasks = angles.length * height;
+            final AtomicInteger done = new AtomicInteger(0);
+            for (int c = 0; c < sc; ++c) {
+                final float[][] volume = volume(c);
+                final int channel = c;
+                final AtomicInteger nextTask = new AtomicInteger(0);
+                Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+                for (int t = 0; t < threads.length; ++t) {
+                    threads[t] = new Thread() {
+                        public void run() {
+                            float[] src = new float[width];
+                            float[] dest = new float[width];
+                            float[] trans = new float[width];
+                            float[] back = check ? new float[width] : null;
+                            for (int task = nextTask.getAndIncrement(); task < nTasks; task = nextTask.getAndIncrement()) {
+                                if (cancelled != null && cancelled.get())
+                                    return;
+                                int a = task / height, v = task % height;
+                                short[] pixels = (short[])out.getPixels(a*sc + channel + 1);
+                                renderRow(volume, angles[a], v, blendFunc, frontFunc, maxSrc, src, dest, trans);
+                                if (check) {
+                                    renderRow(volume, angles[a], v, blendFunc, null, maxSrc, src, back, trans);
+                                    checkFrontToBack(dest, back, width, frontFunc.maxError(maxSrc, bound));
+                                }
+                                for (int u = 0; u < width; ++u)
+                                    pixels[v*width + u] = (short)dest[u];
+                                int n = done.incrementAndGet();
+                                if (n % height == 0)
+                                    IJ.showProgress(n, nTasks * sc);
+                            }
+                        }
+                    };
+                }
+                ThreadUtil.startAndJoin(threads);
+                if (cancelled != null && cancelled.get())
+                    return null;
+            }
+            IJ.showProgress(1.0);
+            ImagePlus result = new ImagePlus("Rotation", out);
+            result.setDimensions(sc, 1, angles.length);
+            if (sc > 1)
+                result = new CompositeImage(result, CompositeImage.COMPOSITE);
+            result.setOpenAsHyperStack(true);
+            return result;
+        }
+
+        // One channel of the frame as float slices
+        float[][] volume(int c) {
+            float[][] volume = new float[sz][];
+            for (int z = 0; z < sz; ++z) {
+                volume[z] = new float[sx * sy];
+                toFloat(stack.getPixels(frameOffset + sc*z + c + 1), 0, volume[z], sx * sy);
+            }
+            return volume;
+        }
+
+        // Right, down and viewing directions, in calibrated voxel units
+        double[][] basis(double angle) {
+            double cos = Math.cos(Math.toRadians(angle));
+            double sin = Math.sin(Math.toRadians(angle));
+            // exact at multiples of 90 degrees, so edge voxels stay inside
+            if (Math.abs(cos) < 1e-12) cos = 0;
+            if (Math.abs(sin) < 1e-12) sin = 0;
+            if (axis == 0)
+                return new double[][] {{1, 0, 0}, {0, cos, -sin}, {0, sin, cos}};
+            if (axis == 1)
+                return new double[][] {{cos, 0, sin}, {0, 1, 0}, {-sin, 0, cos}};
+            return new double[][] {{cos, sin, 0}, {-sin, cos, 0}, {0, 0, 1}};
+        }
+
+        // A direction in voxel units, scaled to one voxel along the voxel
+        // axis it runs most nearly along
+        double[] voxelDirection(double[] ed) {
+            double[] d = {ed[0], ed[1], ed[2] / aspect};
+            double m = Math.max(Math.abs(d[0]), Math.max(Math.abs(d[1]), Math.abs(d[2])));
+            return new double[] {d[0] / m, d[1] / m, d[2] / m};
+        }
+
+        // Steps of dir from the front to the back of the volume, with the
+        // parity of that voxel axis so that samples fall on voxel centres
+        int steps(double[] dir) {
+            double span = Math.abs(dir[0]) * (sx - 1) + Math.abs(dir[1]) * (sy - 1)
+                + Math.abs(dir[2]) * (sz - 1) * aspect * aspect;
+            double length = dir[0]*dir[0] + dir[1]*dir[1] + dir[2]*dir[2]*aspect*aspect;
+            int n = (int)Math.floor(span / length + 1e-9) + 1;
+            int major = Math.abs(dir[0]) == 1 ? sx : Math.abs(dir[1]) == 1 ? sy : sz;
+            return n + ((n - major) & 1);
+        }
+
+        void renderRow(float[][] volume, double angle, int v, BlendFunc blendFunc,
+                FrontToBackFunc frontFunc, float maxSrc, float[] src, float[] dest, float[] trans) {
+            double[][] e = basis(angle);
+            double[] eu = e[0], ev = e[1], dir = voxelDirection(e[2]);
+            int n = steps(dir);
+            double cu = -(width - 1) / 2.0, cv = v - (height - 1) / 2.0;
+            // voxel coordinates of the row's first pixel at the middle depth
+            double x1 = (sx - 1) / 2.0 + cu*eu[0] + cv*ev[0];
+            double y1 = (sy - 1) / 2.0 + cu*eu[1] + cv*ev[1];
+            double z1 = (sz - 1) / 2.0 + (cu*eu[2] + cv*ev[2]) / aspect;
+            double uz = eu[2] / aspect;
+            java.util.Arrays.fill(dest, 0f);
+            int depth = n; // steps to composite back to front
+            if (frontFunc != null) {
+                // march front to back, with early termination
+                java.util.Arrays.fill(trans, 1f);
+                depth = 0;
+                while (depth < n) {
+                    sampleStep(volume, depth++, n, x1, y1, z1, dir, eu[0], eu[1], uz, src);
+                    if (!frontFunc.compositeBehind(src, dest, trans, 0, width, maxSrc, n - depth))
+                        break;
+                }
+                if (!frontFunc.roundsFromBack()) {
+                    for (int u = 0; u < width; ++u)
+                        dest[u] = to16Bit(dest[u]);
+                    return;
+                }
+                java.util.Arrays.fill(dest, 0f);
+            }
+            for (int step = depth - 1; step >= 0; --step) {
+                sampleStep(volume, step, n, x1, y1, z1, dir, eu[0], eu[1], uz, src);
+                blendFunc.composite(src, dest, width);
+            }
+        }
+
+        // Samples along the row at one of the n steps of dir, from (x1, y1, z1)
+        // at the middle depth and moving (ux, uy, uz) per pixel
+        void sampleStep(float[][] volume, int step, int n, double x1, double y1, double z1,
+                double[] dir, double ux, double uy, double uz, float[] src) {
+            double cd = step - (n - 1) / 2.0;
+            double x0 = x1 + cd*dir[0];
+            double y0 = y1 + cd*dir[1];
+            double z0 = z1 + cd*dir[2];
+            for (int u = 0; u < src.length; ++u)
+                src[u] = sample(volume, x0 + u*ux, y0 + u*uy, z0 + u*uz);
+        }
+
+        // Trilinear interpolation between voxel centres; zero outside
+        float sample(float[][] volume, double x, double y, double z) {
+            if (x < 0 || y < 0 || z < 0 || x > sx - 1 || y > sy - 1 || z > sz - 1)
+                return 0f;
+            int ix = (int)x, iy = (int)y, iz = (int)z;
+            float fx = (float)(x - ix), fy = (float)(y - iy), fz = (float)(z - iz);
+            int ix1 = ix < sx - 1 ? ix + 1 : ix;
+            int i0 = iy * sx, i1 = (iy < sy - 1 ? iy + 1 : iy) * sx;
+            float[] p = volume[iz], q = volume[iz < sz - 1 ? iz + 1 : iz];
+            float a = p[i0 + ix] + fx * (p[i0 + ix1] - p[i0 + ix]);
+            float b = p[i1 + ix] + fx * (p[i1 + ix1] - p[i1 + ix]);
+            float c = q[i0 + ix] + fx * (q[i0 + ix1] - q[i0 + ix]);
+            float d = q[i1 + ix] + fx * (q[i1 + ix1] - q[i1 + ix]);
+            a += fy * (b - a);
+            c += fy * (d - c);
+            return a + fz * (c - a);
+        }
+    }
     
     interface BlendFunc {
         float compute(float src, float dest, boolean debug);
+        // compute() over n pixels, storing each result as 16 bits would
+        void composite(float[] src, float[] dest, int n);
     }
 
-    class MipFunc implements BlendFunc {
+    /**
+     * A blend that can also be run from the front, with trans set to 1
+     * before the first slice. compositeBehind takes the next slice, with
+     * behind slices still behind it, and returns false once nothing
+     * behind can change a pixel in [from, to) by more than maxError,
+     * given sources no larger than maxSrc. Where roundsFromBack is false
+     * dest then holds the result; otherwise the slices run so far must
+     * be composited back to front. maxError is the largest difference
+     * from compositing all n slices back to front, which rounds and
+     * wraps to 16 bits after every slice, or infinity where there is no
+     * bound.
+     */
+    interface FrontToBackFunc extends BlendFunc {
+        boolean compositeBehind(float[] src, float[] dest, float[] trans,
+                int from, int to, float maxSrc, int behind);
+        boolean roundsFromBack();
+        float maxError(float maxSrc, int n);
+    }
+
+    class MipFunc implements FrontToBackFunc {
         @Override
         public float compute(float src, float dest, boolean debug) {
             return src > dest ? src : dest;
         }
+
+        @Override
+        public void composite(float[] src, float[] dest, int n) {
+            for (int i = 0; i < n; ++i) {
+                float s = src[i], d = dest[i];
+                dest[i] = to16Bit(s > d ? s : d);
+            }
+        }
+
+        // nothing behind can exceed a pixel already at the maximum
+        @Override
+        public boolean compositeBehind(float[] src, float[] dest, float[] trans,
+                int from, int to, float maxSrc, int behind) {
+            boolean open = false;
+            for (int i = from; i < to; ++i) {
+                float s = src[i], d = dest[i];
+                if (s > d)
+                    dest[i] = d = s;
+                if (d < maxSrc)
+                    open = true;
+            }
+            return open;
+        }
+
+        @Override
+        public boolean roundsFromBack() {
+            return false;
+        }
+
+        // rounding commutes with the maximum, as long as nothing wraps
+        @Override
+        public float maxError(float maxSrc, int n) {
+            return maxSrc <= 65535f ? 0f : Float.POSITIVE_INFINITY;
+        }
     }
 
     class LimitedAlphaFuncWrong implements BlendFunc {
@@ -104,29 +842,105 @@ public class AlphaBlend_Plugin implements ExtendedPlugInFilter {
                 IJ.log("s,d,o = "+src+","+dest+","+o);
             return o;
         }
+
+        @Override
+        public void composite(float[] src, float[] dest, int n) {
+            for (int i = 0; i < n; ++i)
+                dest[i] = to16Bit(compute(src[i], dest[i], false));
+        }
     }
 
     class LimitedAlphaFunc implements BlendFunc {
+        final float m;
+
+        LimitedAlphaFunc(float m) {
+            this.m = m;
+        }
+
         @Override
         public float compute(float src, float dest, boolean debug) {
-            float m = 10.0f;
             float z = 1.0f/m;
             float o = z*src;
             if (dest > 0)
                 o += (dest/(dest+src*m*z/(m-1)))*dest;
             return o;
         }
+
+        @Override
+        public void composite(float[] src, float[] dest, int n) {
+            float z = 1.0f/m;
+            for (int i = 0; i < n; ++i) {
+                float s = src[i], d = dest[i];
+                float o = z*s;
+                if (d > 0)
+                    o += (d/(d+s*m*z/(m-1)))*d;
+                dest[i] = to16Bit(o);
+            }
+        }
     }
 
-    class AlphaFunc implements BlendFunc {
+    class AlphaFunc implements FrontToBackFunc {
+        final float fog;
+
+        AlphaFunc(float fog) {
+            this.fog = fog;
+        }
+
 	    @Override
 	    public float compute(float src, float dest, boolean debug) {
 	        float max = 255.0f;
-	        float fog = 1.0f;
 	        float k = fog * (1.0f - src/max);
 	        float o = src + k*k * dest;
 	        return o;
 	    }
+
+        @Override
+        public void composite(float[] src, float[] dest, int n) {
+            float max = 255.0f;
+            for (int i = 0; i < n; ++i) {
+                float k = fog * (1.0f - src[i]/max);
+                dest[i] = to16Bit(src[i] + k*k * dest[i]);
+            }
+        }
+
+        // compute() is src + k^2 * dest, rounded. Back to front, whatever
+        // lies behind a slice is at most (maxSrc + 0.5) times the sum of
+        // kMax^2i over the slices behind, so once k^2 times that is at most
+        // 1 it can move this slice's rounded value by at most a grey level,
+        // and with k^2 <= 1 in front that difference never grows. trans
+        // marks such pixels with 0; dest is left for the back to front pass.
+        @Override
+        public boolean compositeBehind(float[] src, float[] dest, float[] trans,
+                int from, int to, float maxSrc, int behind) {
+            float max = 255.0f;
+            float kMax = Math.abs(fog) * Math.max(1f, maxSrc/max - 1f);
+            float tail = (maxSrc + 0.5f) * (kMax < 1f ? Math.min(behind, 1f / (1f - kMax*kMax)) : behind);
+            boolean open = false;
+            for (int i = from; i < to; ++i) {
+                if (trans[i] == 0f)
+                    continue;
+                float k = fog * (1.0f - src[i]/max);
+                if (k*k * tail <= 1f)
+                    trans[i] = 0f;
+                else
+                    open = true;
+            }
+            return open;
+        }
+
+        @Override
+        public boolean roundsFromBack() {
+            return true;
+        }
+
+        // bounded only while k^2 <= 1 for every source and nothing wraps
+        @Override
+        public float maxError(float maxSrc, int n) {
+            float kMax = Math.abs(fog) * Math.max(1f, maxSrc/255.0f - 1f);
+            if (kMax > 1f || (maxSrc + 0.5) * n > 65535)
+                return Float.POSITIVE_INFINITY;
+            return 1f;
+        }
     }
 
 }
@@ -9,13 +9,33 @@
  * strong bilateral symmetry, such as whole-brain or whole-animal images.
  *
  * But it looks like the result is not clean enough to identify the mirror plane.  Oh well.
+ *
+ * So there is also a direct "Plane search" method, which scores candidate
+ * mirror planes by how well the volume correlates with its own reflection,
+ * coarse to fine over an image pyramid (see PlaneSearch below).
  */
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
 import ij.plugin.PlugIn;
+import ij.process.FloatProcessor;
+import ij.util.ThreadUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.basictypeaccess.array.FloatArray;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImagePlusAdapter;
 import mpicbg.imglib.type.numeric.RealType;
@@ -33,14 +53,38 @@ public class Bilateral_Symmetry<T extends RealType<T> > implements PlugIn {
 
 	protected Image<T> img;
 
+	static final String[] METHODS = {"Frequency doubling", "Plane search"};
+	static final String[] OUTPUTS = {"Aligned", "Reflected", "None"};
+	static String methodOption = METHODS[0];
+	static int directionsOption = 256;
+	static int candidatesOption = 8;
+	static String outputOption = OUTPUTS[0];
+	static boolean lowMemoryOption = false;
+
 	public void run(String arg) 
 	{
 		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null) {
+			IJ.noImage();
+			return;
+		}
+		if (!showDialog())
+			return;
+		if (methodOption.equals(METHODS[1])) {
+			searchPlane(imp);
+			return;
+		}
 		img = ImagePlusAdapter.wrap(imp);
 
 		// Fourier Transform
 		final FourierTransform<T, ComplexFloatType> fft
 			= new FourierTransform<T, ComplexFloatType>(img, new ComplexFloatType() );
+		if (lowMemoryOption) {
+			// Zero padding to the smallest valid size, instead of a
+			// mirrored border padded to the fastest size.
+			fft.setPreProcessing(FourierTransform.PreProcessing.NONE);
+			fft.setFFTOptimization(FourierTransform.FFTOptimization.MEMORY);
+		}
 		final Image<ComplexFloatType> kernelFFT;
 		if ( fft.checkInput() && fft.process() )
 			kernelFFT = fft.getResult();
@@ -49,12 +93,501 @@ public class Bilateral_Symmetry<T extends RealType<T> > implements PlugIn {
 			return;
 		}
 
-		// Double dimensions of derived FFT
-		int[] bilateralDims = new int[kernelFFT.getNumDimensions()];
-		kernelFFT.getDimensions(bilateralDims);
-		// for (int d = 0; d < kernelFFT.getNumDimensions(); ++d)
-		// 	bilateralDims[d] *= 2;
-		final Image<ComplexFloatType> bilateralFFT = kernelFFT.createNewImage(bilateralDims);
+		final Image<ComplexFloatType> bilateralFFT;
+		if (lowMemoryOption && (kernelFFT.getContainer() instanceof Array)) {
+			// Overwrite the spectrum with its own phase doubled version
+			doublePhaseInPlace(kernelFFT);
+			bilateralFFT = kernelFFT;
+		}
+		else {
+			// Double dimensions of derived FFT
+			int[] bilateralDims = new int[kernelFFT.getNumDimensions()];
+			kernelFFT.getDimensions(bilateralDims);
+			// for (int d = 0; d < kernelFFT.getNumDimensions(); ++d)
+			// 	bilateralDims[d] *= 2;
+			bilateralFFT = kernelFFT.createNewImage(bilateralDims);
+			if ((kernelFFT.getContainer() instanceof Array) && (bilateralFFT.getContainer() instanceof Array))
+				doublePhaseFlat(kernelFFT, bilateralFFT);
+			else
+				doublePhaseByCursor(kernelFFT, bilateralFFT);
+			if (lowMemoryOption)
+				kernelFFT.close();
+		}
+
+		// ImageJFunctions.copyToImagePlus( bilateralFFT ).show();
+		
+		// Inverse FFT
+	        // compute inverse fourier transform of the kernel
+	        final InverseFourierTransform< FloatType, ComplexFloatType > ifft = 
+	        	new InverseFourierTransform< FloatType, ComplexFloatType >( bilateralFFT, fft, new FloatType() );
+		if (lowMemoryOption)
+			ifft.setInPlaceTransform(true);
+	        final Image< FloatType > kernelInverse;
+	        if ( ifft.checkInput() && ifft.process() )
+	                kernelInverse = ifft.getResult();
+	        else
+	        {
+				IJ.write("Cannot complete inverse Fourier transform: " + 
+						ifft.getErrorMessage() );
+				return;
+	        }
+		
+		if (lowMemoryOption) {
+			// Show the result without copying it into ImageJ slices
+			bilateralFFT.close();
+			img = null;
+			ImageJFunctions.displayAsVirtualStack( kernelInverse ).show();
+		}
+		else
+			ImageJFunctions.copyToImagePlus( kernelInverse ).show();
+	}
+
+	boolean showDialog()
+	{
+		GenericDialog gd = new GenericDialog("Bilateral Symmetry");
+		gd.addChoice("Method:", METHODS, methodOption);
+		gd.addMessage("Frequency doubling:");
+		gd.addCheckbox("Low memory (in place spectrum)", lowMemoryOption);
+		gd.addMessage("Plane search:");
+		gd.addNumericField("Coarse directions:", directionsOption, 0);
+		gd.addNumericField("Candidates refined:", candidatesOption, 0);
+		gd.addChoice("Output volume:", OUTPUTS, outputOption);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		methodOption = gd.getNextChoice();
+		lowMemoryOption = gd.getNextBoolean();
+		directionsOption = Math.max(1, (int)gd.getNextNumber());
+		candidatesOption = Math.max(1, (int)gd.getNextNumber());
+		outputOption = gd.getNextChoice();
+		return true;
+	}
+
+	// Find the plane of bilateral symmetry of the current channel and
+	// frame, log it, and optionally show the aligned or reflected volume.
+	void searchPlane(ImagePlus imp)
+	{
+		if ((imp.getWidth() < PlaneSearch.MIN_SIZE) || (imp.getHeight() < PlaneSearch.MIN_SIZE)) {
+			IJ.error("Bilateral Symmetry", "The plane search needs an image at least "
+					+ PlaneSearch.MIN_SIZE + " pixels wide and high.");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		PlaneSearch search = new PlaneSearch(imp);
+		PlaneSearch.Plane best = search.find(directionsOption, candidatesOption);
+		Calibration cal = imp.getCalibration();
+		IJ.log("Bilateral symmetry plane of " + imp.getTitle() + ":");
+		IJ.log("  normal = (" + IJ.d2s(best.normal[0], 4) + ", " + IJ.d2s(best.normal[1], 4)
+				+ ", " + IJ.d2s(best.normal[2], 4) + ")");
+		IJ.log("  offset from volume centre = " + IJ.d2s(best.offset, 3) + " " + cal.getUnits());
+		IJ.log("  reflected correlation = " + IJ.d2s(best.score, 4));
+		IJ.log("  search time = " + (System.currentTimeMillis() - start) + " ms");
+		ImagePlus result = null;
+		if (outputOption.equals(OUTPUTS[0]))
+			result = search.render(best, true, imp.getTitle() + " aligned");
+		else if (outputOption.equals(OUTPUTS[1]))
+			result = search.render(best, false, imp.getTitle() + " reflected");
+		if (result != null) {
+			result.setCalibration(cal.copy());
+			result.show();
+		}
+	}
+
+	/**
+	 * Coarse-to-fine search for the mirror plane n.p = offset, in
+	 * calibrated coordinates centred on the volume. A plane is scored by
+	 * the normalized cross-correlation between the volume and its own
+	 * reflection through the plane. All directions of a hemisphere (of a
+	 * half circle in x-y for a single slice, which any normal with a z
+	 * component would reflect onto itself) and a range of offsets are
+	 * scored in parallel at the coarsest pyramid
+	 * level; the best few distinct candidates are then hill-climbed level
+	 * by level, keeping half of them at each finer level, so that only a
+	 * handful of planes are ever scored at full resolution. Each score
+	 * reads at most SAMPLE_LIMIT voxels on a regular lattice.
+	 */
+	static class PlaneSearch {
+		static final int COARSEST_SIZE = 48; // largest dimension of the top level
+		static final int SAMPLE_LIMIT = 1 << 20;
+		static final int MIN_SIZE = 2; // smallest width and height sample() can interpolate
+		static final double MIN_OVERLAP = 0.25; // of sampled voxels
+
+		final List<Level> pyramid = new ArrayList<Level>();
+
+		static class Plane implements Comparable<Plane> {
+			final double[] normal;
+			final double offset;
+			double score = -2;
+
+			Plane(double[] normal, double offset) {
+				this.normal = normal;
+				this.offset = offset;
+			}
+
+			public int compareTo(Plane other) {
+				return Double.compare(other.score, score); // best first
+			}
+		}
+
+		// One resolution level: float voxels and calibrated voxel size
+		static class Level {
+			final int w, h, d;
+			final double sx, sy, sz;
+			final float[][] slices;
+
+			Level(int w, int h, int d, double sx, double sy, double sz) {
+				this.w = w;
+				this.h = h;
+				this.d = d;
+				this.sx = sx;
+				this.sy = sy;
+				this.sz = sz;
+				slices = new float[d][w * h];
+			}
+
+			double minVoxelSize() {
+				return Math.min(sx, Math.min(sy, (d > 1) ? sz : sx));
+			}
+
+			// Trilinear interpolation at voxel coordinates inside the volume
+			double sample(double fx, double fy, double fz) {
+				int x0 = Math.min((int)fx, w - 2);
+				int y0 = Math.min((int)fy, h - 2);
+				int z0 = Math.min((int)fz, d - 1);
+				int z1 = Math.min(z0 + 1, d - 1);
+				double ax = fx - x0, ay = fy - y0, az = fz - z0;
+				float[] p0 = slices[z0];
+				float[] p1 = slices[z1];
+				int i = y0 * w + x0;
+				double v0 = (1 - ay) * ((1 - ax) * p0[i] + ax * p0[i + 1])
+						+ ay * ((1 - ax) * p0[i + w] + ax * p0[i + w + 1]);
+				double v1 = (1 - ay) * ((1 - ax) * p1[i] + ax * p1[i + 1])
+						+ ay * ((1 - ax) * p1[i + w] + ax * p1[i + w + 1]);
+				return (1 - az) * v0 + az * v1;
+			}
+
+			// Average 2x2 blocks in x and y, and pairs of slices while
+			// the slices are thinner than the new pixels.
+			Level downsample() {
+				boolean halveZ = (d > 1) && (sz < 2 * Math.max(sx, sy));
+				int nw = Math.max(MIN_SIZE, w / 2), nh = Math.max(MIN_SIZE, h / 2);
+				int nd = halveZ ? d / 2 : d;
+				Level result = new Level(nw, nh, nd, sx * w / nw, sy * h / nh, halveZ ? sz * 2 : sz);
+				for (int z = 0; z < nd; ++z) {
+					float[] out = result.slices[z];
+					int zn = halveZ ? 2 : 1;
+					for (int dz = 0; dz < zn; ++dz) {
+						float[] in = slices[z * zn + dz];
+						for (int y = 0; y < nh; ++y) {
+							for (int x = 0; x < nw; ++x) {
+								int i = 2 * y * w + 2 * x;
+								out[y * nw + x] += (in[i] + in[i + 1] + in[i + w] + in[i + w + 1]) / (4f * zn);
+							}
+						}
+					}
+				}
+				return result;
+			}
+		}
+
+		PlaneSearch(ImagePlus imp)
+		{
+			Calibration cal = imp.getCalibration();
+			ImageStack stack = imp.getStack();
+			int channel = imp.getChannel();
+			int frame = imp.getFrame();
+			Level level = new Level(imp.getWidth(), imp.getHeight(), imp.getNSlices(),
+					cal.pixelWidth, cal.pixelHeight, cal.pixelDepth);
+			for (int z = 0; z < level.d; ++z) {
+				FloatProcessor fp = (FloatProcessor)stack.getProcessor(
+						imp.getStackIndex(channel, z + 1, frame)).convertToFloat();
+				System.arraycopy((float[])fp.getPixels(), 0, level.slices[z], 0, level.w * level.h);
+			}
+			pyramid.add(level);
+			// Stop before halving would take a level below MIN_SIZE
+			while (Math.max(level.w, Math.max(level.h, level.d)) > COARSEST_SIZE
+					&& (level.w / 2 >= MIN_SIZE) && (level.h / 2 >= MIN_SIZE)) {
+				level = level.downsample();
+				pyramid.add(level);
+			}
+		}
+
+		Plane find(int nDirections, int nCandidates)
+		{
+			int top = pyramid.size() - 1;
+			Level coarse = pyramid.get(top);
+			// Candidate offsets cover the middle half of the smallest extent
+			double step = coarse.minVoxelSize();
+			double extent = Math.min(coarse.w * coarse.sx, coarse.h * coarse.sy);
+			if (coarse.d > 1)
+				extent = Math.min(extent, coarse.d * coarse.sz);
+			int nOffsets = (int)(extent / 4 / step);
+			double angleStep = Math.sqrt(2 * Math.PI / nDirections);
+			List<double[]> normals = (coarse.d > 1)
+				? hemisphere(nDirections)
+				: halfCircle((int)Math.ceil(Math.PI / angleStep));
+			final List<Plane> planes = new ArrayList<Plane>();
+			for (double[] normal : normals)
+				for (int o = -nOffsets; o <= nOffsets; ++o)
+					planes.add(new Plane(normal, o * step));
+			scoreAll(planes, coarse);
+			Collections.sort(planes);
+			// Keep the best candidates that are not near-duplicates
+			List<Plane> candidates = new ArrayList<Plane>();
+			for (Plane plane : planes) {
+				if (candidates.size() >= nCandidates)
+					break;
+				boolean distinct = true;
+				for (Plane kept : candidates) {
+					double cos = Math.abs(dot(plane.normal, kept.normal));
+					if ((cos > Math.cos(2 * angleStep))
+							&& (Math.abs(plane.offset - Math.signum(dot(plane.normal, kept.normal)) * kept.offset) < 2 * step))
+						distinct = false;
+				}
+				if (distinct)
+					candidates.add(plane);
+			}
+			// Refine down the pyramid
+			for (int l = top; l >= 0; --l) {
+				final Level level = pyramid.get(l);
+				final double angle = angleStep / (1 << (top - l));
+				final List<Plane> current = candidates;
+				final Plane[] refined = new Plane[current.size()];
+				final AtomicInteger next = new AtomicInteger(0);
+				Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), current.size()));
+				for (int t = 0; t < threads.length; ++t) {
+					threads[t] = new Thread() {
+						public void run() {
+							for (int c = next.getAndIncrement(); c < refined.length; c = next.getAndIncrement())
+								refined[c] = refine(current.get(c), level, angle, level.minVoxelSize());
+						}
+					};
+				}
+				ThreadUtil.startAndJoin(threads);
+				candidates = new ArrayList<Plane>();
+				Collections.addAll(candidates, refined);
+				Collections.sort(candidates);
+				if (l > 0)
+					candidates = new ArrayList<Plane>(candidates.subList(0, (candidates.size() + 1) / 2));
+				IJ.showProgress(top - l + 1, top + 1);
+			}
+			return candidates.get(0);
+		}
+
+		// Score planes in parallel, one plane per thread at a time
+		void scoreAll(final List<Plane> planes, final Level level)
+		{
+			final AtomicInteger next = new AtomicInteger(0);
+			Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+			for (int t = 0; t < threads.length; ++t) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int i = next.getAndIncrement(); i < planes.size(); i = next.getAndIncrement()) {
+							Plane plane = planes.get(i);
+							plane.score = score(level, plane.normal, plane.offset);
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+
+		// Hill-climb over tilts of the normal and shifts of the offset,
+		// halving the steps twice once no neighbour improves the score.
+		// A single slice is only tilted within x-y.
+		Plane refine(Plane start, Level level, double angle, double shift)
+		{
+			Plane best = new Plane(start.normal, start.offset);
+			best.score = score(level, best.normal, best.offset);
+			for (int halvings = 0; halvings <= 2; ++halvings) {
+				for (int iteration = 0; iteration < 20; ++iteration) {
+					double[][] tangents = (level.d > 1)
+						? tangents(best.normal)
+						: new double[][] {{-best.normal[1], best.normal[0], 0}};
+					Plane improved = null;
+					for (int move = 0; move < 6; ++move) {
+						Plane neighbour;
+						if ((move < 4) && (move / 2 >= tangents.length))
+							continue;
+						if (move < 4) {
+							double[] t = tangents[move / 2];
+							double a = (move % 2 == 0) ? angle : -angle;
+							double[] n = new double[3];
+							for (int k = 0; k < 3; ++k)
+								n[k] = best.normal[k] * Math.cos(a) + t[k] * Math.sin(a);
+							neighbour = new Plane(n, best.offset);
+						}
+						else
+							neighbour = new Plane(best.normal, best.offset + ((move == 4) ? shift : -shift));
+						neighbour.score = score(level, neighbour.normal, neighbour.offset);
+						if (neighbour.score > ((improved == null) ? best.score : improved.score))
+							improved = neighbour;
+					}
+					if (improved == null)
+						break;
+					best = improved;
+				}
+				angle /= 2;
+				shift /= 2;
+			}
+			return best;
+		}
+
+		// Normalized cross-correlation between the level and its
+		// reflection q = p - 2 (n.p - offset) n, over a voxel lattice.
+		static double score(Level level, double[] n, double offset)
+		{
+			int w = level.w, h = level.h, d = level.d;
+			double cx = (w - 1) / 2.0, cy = (h - 1) / 2.0, cz = (d - 1) / 2.0;
+			long nVoxels = (long)w * h * d;
+			int step = (int)Math.ceil(Math.cbrt((double)nVoxels / SAMPLE_LIMIT));
+			// Moving one lattice step along x moves the reflection by this much
+			double ddx = step * (1 - 2 * n[0] * n[0]);
+			double ddy = step * (-2 * n[0] * n[1]) * level.sx / level.sy;
+			double ddz = step * (-2 * n[0] * n[2]) * level.sx / level.sz;
+			double sa = 0, sb = 0, sab = 0, saa = 0, sbb = 0;
+			long count = 0, sampled = 0;
+			for (int z = 0; z < d; z += step) {
+				double pz = (z - cz) * level.sz;
+				float[] slice = level.slices[z];
+				for (int y = 0; y < h; y += step) {
+					double py = (y - cy) * level.sy;
+					double px = -cx * level.sx;
+					double dist = n[0] * px + n[1] * py + n[2] * pz - offset;
+					double fx = (px - 2 * dist * n[0]) / level.sx + cx;
+					double fy = (py - 2 * dist * n[1]) / level.sy + cy;
+					double fz = (d > 1) ? (pz - 2 * dist * n[2]) / level.sz + cz : 0;
+					for (int x = 0; x < w; x += step, fx += ddx, fy += ddy, fz += ddz) {
+						++sampled;
+						if ((fx < 0) || (fy < 0) || (fx > w - 1) || (fy > h - 1))
+							continue;
+						if ((d > 1) && ((fz < 0) || (fz > d - 1)))
+							continue;
+						double a = slice[y * w + x];
+						double b = level.sample(fx, fy, (d > 1) ? fz : 0);
+						sa += a;
+						sb += b;
+						sab += a * b;
+						saa += a * a;
+						sbb += b * b;
+						++count;
+					}
+				}
+			}
+			if (count < MIN_OVERLAP * sampled)
+				return -1;
+			double cov = count * sab - sa * sb;
+			double var = (count * saa - sa * sa) * (count * sbb - sb * sb);
+			return (var > 0) ? cov / Math.sqrt(var) : -1;
+		}
+
+		// Full resolution output. Aligned: the volume resampled so that the
+		// plane becomes the central y-z plane, with x along the normal.
+		// Reflected: the volume mirrored through the plane.
+		ImagePlus render(final Plane plane, final boolean aligned, String title)
+		{
+			final Level level = pyramid.get(0);
+			final double[] n = plane.normal;
+			final double[][] t = tangents(n);
+			final ImageStack stack = new ImageStack(level.w, level.h);
+			final float[][] out = new float[level.d][];
+			final AtomicInteger nextSlice = new AtomicInteger(0);
+			Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+			for (int th = 0; th < threads.length; ++th) {
+				threads[th] = new Thread() {
+					public void run() {
+						double cx = (level.w - 1) / 2.0, cy = (level.h - 1) / 2.0, cz = (level.d - 1) / 2.0;
+						for (int z = nextSlice.getAndIncrement(); z < level.d; z = nextSlice.getAndIncrement()) {
+							float[] pixels = new float[level.w * level.h];
+							double qz = (z - cz) * level.sz;
+							for (int y = 0; y < level.h; ++y) {
+								double qy = (y - cy) * level.sy;
+								for (int x = 0; x < level.w; ++x) {
+									double qx = (x - cx) * level.sx;
+									double px, py, pz;
+									if (aligned) {
+										// x along the normal, y and z along the tangents
+										px = qx * n[0] + qy * t[0][0] + qz * t[1][0] + plane.offset * n[0];
+										py = qx * n[1] + qy * t[0][1] + qz * t[1][1] + plane.offset * n[1];
+										pz = qx * n[2] + qy * t[0][2] + qz * t[1][2] + plane.offset * n[2];
+									}
+									else {
+										double dist = n[0] * qx + n[1] * qy + n[2] * qz - plane.offset;
+										px = qx - 2 * dist * n[0];
+										py = qy - 2 * dist * n[1];
+										pz = qz - 2 * dist * n[2];
+									}
+									double fx = px / level.sx + cx;
+									double fy = py / level.sy + cy;
+									double fz = (level.d > 1) ? pz / level.sz + cz : 0;
+									if ((fx < 0) || (fy < 0) || (fx > level.w - 1) || (fy > level.h - 1)
+											|| (fz < 0) || (fz > level.d - 1))
+										continue;
+									pixels[y * level.w + x] = (float)level.sample(fx, fy, fz);
+								}
+							}
+							out[z] = pixels;
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+			for (int z = 0; z < level.d; ++z)
+				stack.addSlice(null, out[z]);
+			return new ImagePlus(title, stack);
+		}
+
+		// Evenly spread unit vectors with z >= 0 (Fibonacci lattice)
+		static List<double[]> hemisphere(int count)
+		{
+			List<double[]> result = new ArrayList<double[]>();
+			double goldenAngle = Math.PI * (3 - Math.sqrt(5));
+			for (int i = 0; i < count; ++i) {
+				double z = 1 - (i + 0.5) / count;
+				double r = Math.sqrt(1 - z * z);
+				double phi = i * goldenAngle;
+				result.add(new double[] {r * Math.cos(phi), r * Math.sin(phi), z});
+			}
+			return result;
+		}
+
+		// Evenly spread unit vectors in the x-y plane with y >= 0, or x > 0
+		// along the x axis
+		static List<double[]> halfCircle(int count)
+		{
+			List<double[]> result = new ArrayList<double[]>();
+			for (int i = 0; i < count; ++i) {
+				double phi = Math.PI * i / count;
+				result.add(new double[] {Math.cos(phi), Math.sin(phi), 0});
+			}
+			return result;
+		}
+
+		// Two unit vectors perpendicular to n, the first as close to the
+		// y axis as possible and the second n x first.
+		static double[][] tangents(double[] n)
+		{
+			double[] t1 = {-n[1] * n[0], 1 - n[1] * n[1], -n[1] * n[2]};
+			double len = Math.sqrt(dot(t1, t1));
+			if (len < 1e-6) { // n is along y; use z instead
+				t1 = new double[] {-n[2] * n[0], -n[2] * n[1], 1 - n[2] * n[2]};
+				len = Math.sqrt(dot(t1, t1));
+			}
+			for (int k = 0; k < 3; ++k)
+				t1[k] /= len;
+			double[] t2 = {n[1] * t1[2] - n[2] * t1[1], n[2] * t1[0] - n[0] * t1[2], n[0] * t1[1] - n[1] * t1[0]};
+			return new double[][] {t1, t2};
+		}
+
+		static double dot(double[] a, double[] b) {
+			return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+		}
+	}
+
+	// Reference implementation: walk the output with a positioned cursor
+	// and look up each input coefficient individually.
+	void doublePhaseByCursor(Image<ComplexFloatType> kernelFFT, Image<ComplexFloatType> bilateralFFT)
+	{
 		// TODO - need a cursor that counts monotonically downward in absolute value of h,k,l Fourier indices.
 		LocalizableByDimCursor<ComplexFloatType> cursor = bilateralFFT.createLocalizableByDimCursor();
 		LocalizableByDimCursor<ComplexFloatType> cursor2 = kernelFFT.createLocalizableByDimCursor();
@@ -107,23 +640,215 @@ public class Bilateral_Symmetry<T extends RealType<T> > implements PlugIn {
 				}
 			}
 		}
+	}
 
-		// ImageJFunctions.copyToImagePlus( bilateralFFT ).show();
-		
-		// Inverse FFT
-	        // compute inverse fourier transform of the kernel
-	        final InverseFourierTransform< FloatType, ComplexFloatType > ifft = 
-	        	new InverseFourierTransform< FloatType, ComplexFloatType >( bilateralFFT, fft, new FloatType() );
-	        final Image< FloatType > kernelInverse;
-	        if ( ifft.checkInput() && ifft.process() )
-	                kernelInverse = ifft.getResult();
-	        else
-	        {
-				IJ.write("Cannot complete inverse Fourier transform: " + 
-						ifft.getErrorMessage() );
-				return;
-	        }
-		
-		ImageJFunctions.copyToImagePlus( kernelInverse ).show();
+	// Phase doubling straight between the storage arrays of the spectra.
+	// The volume is split into lines along x, which threads take in turn;
+	// the Fourier indices of a line's other dimensions are worked out once
+	// per line. Doubling the phase of z = |z|e^(i phi) is the same as
+	// z^2/|z|, so no trig is needed.
+	void doublePhaseFlat(final Image<ComplexFloatType> kernelFFT, final Image<ComplexFloatType> bilateralFFT)
+	{
+		final float[] input = ((FloatArray)((Array<?, ?>)kernelFFT.getContainer()).update(null)).getCurrentStorageArray();
+		final float[] output = ((FloatArray)((Array<?, ?>)bilateralFFT.getContainer()).update(null)).getCurrentStorageArray();
+
+		final int[] inDims = kernelFFT.getDimensions();
+		final int[] outDims = bilateralFFT.getDimensions();
+		final int nDims = outDims.length;
+		final int lineLength = outDims[0];
+		final int nLines = bilateralFFT.getNumPixels() / lineLength;
+		final AtomicInteger nextLine = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int line = nextLine.getAndIncrement(); line < nLines; line = nextLine.getAndIncrement()) {
+						// Input line holding half of this line's frequencies
+						int inLine = 0;
+						int stride = 1;
+						boolean bZero = false;
+						int rest = line;
+						for (int d = 1; d < nDims; ++d) {
+							int hkl = rest % outDims[d] - outDims[d]/2;
+							rest /= outDims[d];
+							// Zero out coefficients with odd indices
+							if (hkl % 2 != 0) {
+								bZero = true;
+								break;
+							}
+							inLine += (hkl / 2 + inDims[d]/2) * stride;
+							stride *= inDims[d];
+						}
+						int outOffset = 2 * line * lineLength;
+						if (bZero) {
+							Arrays.fill(output, outOffset, outOffset + 2 * lineLength, 0f);
+							continue;
+						}
+						int inOffset = 2 * inLine * inDims[0];
+						for (int x = 0; x < lineLength; ++x) {
+							// x axis is a half plane
+							int h = x - (lineLength - 1);
+							int o = outOffset + 2 * x;
+							if (h % 2 != 0) {
+								output[o] = output[o + 1] = 0f;
+								continue;
+							}
+							int i = inOffset + 2 * (h / 2 + (inDims[0] - 1));
+							double real2 = input[i];
+							double imag2 = input[i + 1];
+							double amplitude = Math.sqrt(real2*real2 + imag2*imag2);
+							if (amplitude == 0) {
+								output[o] = output[o + 1] = 0f;
+								continue;
+							}
+							output[o] = (float)((real2*real2 - imag2*imag2) / amplitude);
+							output[o + 1] = (float)(2 * real2 * imag2 / amplitude);
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+
+	// Phase doubling that overwrites the spectrum it reads, so that no
+	// second spectrum or flat copy is needed. Coefficient h is set from
+	// h/2, which is never further from the origin, so x lines are
+	// rewritten in rings of decreasing distance from the central line:
+	// every line that reads a source line is done before the source line
+	// itself is overwritten. Lines within a ring are independent and are
+	// shared between threads.
+	void doublePhaseInPlace(Image<ComplexFloatType> spectrum)
+	{
+		float[] data = ((FloatArray)((Array<?, ?>)spectrum.getContainer()).update(null)).getCurrentStorageArray();
+		doublePhaseInPlace(data, InPlacePlan.get(spectrum.getDimensions()));
+	}
+
+	static void doublePhaseInPlace(final float[] data, final InPlacePlan plan)
+	{
+		final int lineLength = plan.lineLength;
+		for (int ring = 0; ring < plan.ringEnds.length; ++ring) {
+			final int first = (ring == 0) ? 0 : plan.ringEnds[ring - 1];
+			final int last = plan.ringEnds[ring];
+			final AtomicInteger nextLine = new AtomicInteger(first);
+			final Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), last - first));
+			for (int t = 0; t < threads.length; ++t) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int l = nextLine.getAndIncrement(); l < last; l = nextLine.getAndIncrement()) {
+							int line = plan.lines[l];
+							int outOffset = 2 * line * lineLength;
+							if (plan.sources[l] < 0) {
+								// Odd Fourier index
+								Arrays.fill(data, outOffset, outOffset + 2 * lineLength, 0f);
+								continue;
+							}
+							int inOffset = 2 * plan.sources[l] * lineLength;
+							// x axis is a half plane; ascending x reads at or
+							// beyond the write position on the central line
+							for (int x = 0; x < lineLength; ++x) {
+								int h = x - (lineLength - 1);
+								int o = outOffset + 2 * x;
+								if (h % 2 != 0) {
+									data[o] = data[o + 1] = 0f;
+									continue;
+								}
+								int i = inOffset + 2 * (h / 2 + (lineLength - 1));
+								double real2 = data[i];
+								double imag2 = data[i + 1];
+								double amplitude = Math.sqrt(real2*real2 + imag2*imag2);
+								if (amplitude == 0) {
+									data[o] = data[o + 1] = 0f;
+									continue;
+								}
+								data[o] = (float)((real2*real2 - imag2*imag2) / amplitude);
+								data[o + 1] = (float)(2 * real2 * imag2 / amplitude);
+							}
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+	}
+
+	/**
+	 * Order in which doublePhaseInPlace rewrites the x lines of a
+	 * spectrum, with the source line of each (or -1 to zero it). Plans
+	 * only depend on the padded spectrum dimensions, so the last few are
+	 * kept for repeated runs on stacks of the same size.
+	 */
+	static class InPlacePlan {
+		static final int CACHE_SIZE = 4;
+		static final Map<String, InPlacePlan> cache = new LinkedHashMap<String, InPlacePlan>(CACHE_SIZE, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, InPlacePlan> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+
+		final int lineLength;
+		final int[] lines;    // line indices, outermost ring first
+		final int[] sources;  // matching source lines
+		final int[] ringEnds; // end of each ring in lines
+
+		static synchronized InPlacePlan get(int[] dims) {
+			String key = Arrays.toString(dims);
+			InPlacePlan plan = cache.get(key);
+			if (plan == null) {
+				plan = new InPlacePlan(dims);
+				cache.put(key, plan);
+			}
+			return plan;
+		}
+
+		InPlacePlan(int[] dims) {
+			lineLength = dims[0];
+			int nLines = 1;
+			for (int d = 1; d < dims.length; ++d)
+				nLines *= dims[d];
+			// Ring of a line is its largest absolute Fourier index
+			int[] ringOf = new int[nLines];
+			int[] source = new int[nLines];
+			int nRings = 1;
+			for (int line = 0; line < nLines; ++line) {
+				int rest = line;
+				int ring = 0;
+				int src = 0;
+				int stride = 1;
+				for (int d = 1; d < dims.length; ++d) {
+					int hkl = rest % dims[d] - dims[d]/2;
+					rest /= dims[d];
+					ring = Math.max(ring, Math.abs(hkl));
+					if ((src >= 0) && (hkl % 2 == 0))
+						src += (hkl / 2 + dims[d]/2) * stride;
+					else
+						src = -1;
+					stride *= dims[d];
+				}
+				ringOf[line] = ring;
+				source[line] = src;
+				nRings = Math.max(nRings, ring + 1);
+			}
+			// Counting sort by descending ring
+			int[] counts = new int[nRings];
+			for (int line = 0; line < nLines; ++line)
+				++counts[ringOf[line]];
+			ringEnds = new int[nRings];
+			int end = 0;
+			for (int r = nRings - 1; r >= 0; --r) {
+				end += counts[r];
+				ringEnds[nRings - 1 - r] = end;
+			}
+			int[] fill = new int[nRings];
+			for (int i = 0; i < nRings; ++i)
+				fill[i] = (i == 0) ? 0 : ringEnds[i - 1];
+			lines = new int[nLines];
+			sources = new int[nLines];
+			for (int line = 0; line < nLines; ++line) {
+				int slot = fill[nRings - 1 - ringOf[line]]++;
+				lines[slot] = line;
+				sources[slot] = source[line];
+			}
+		}
 	}
 }
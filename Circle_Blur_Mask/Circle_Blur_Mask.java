@@ -1,15 +1,30 @@
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
+import ij.util.ThreadUtil;
 import ij.*;
 
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This is a template for a plugin that requires one image to
  * be opened, and takes it as parameter.
  */
 public class Circle_Blur_Mask implements PlugInFilter {
 	protected ImagePlus image;
+	protected boolean processStack = false;
+
+	static final String[] SHAPES = {"Circle", "Ellipse", "Rectangle", "Selection"};
+	static final String[] FILLS = {"Slice mean", "Stack mean", "Stack median"};
+	static String shapeOption = SHAPES[0];
+	static double featherOption = 50;
+	static String fillOption = FILLS[0];
 
 	/**
 	 * This method gets called by ImageJ / Fiji to determine
@@ -33,8 +48,46 @@ public class Circle_Blur_Mask implements PlugInFilter {
 		 * method with all slices of the current image
 		 * (channels, z-slices and frames, all). Most likely
 		 * not what you want.
+		 *
+		 * So instead of returning DOES_STACKS, we ask whether to
+		 * process the whole stack, and do that ourselves in run(),
+		 * in parallel, with one shared weight table.
 		 */
-		return DOES_8G | DOES_16 | DOES_32;
+		int flags = DOES_8G | DOES_16 | DOES_32;
+		if (image == null)
+			return flags;
+		flags = IJ.setupDialog(image, flags);
+		if (flags == DONE)
+			return DONE;
+		if ((flags & DOES_STACKS) != 0) {
+			processStack = true;
+			flags &= ~DOES_STACKS;
+		}
+		if (!showDialog())
+			return DONE;
+		return flags;
+	}
+
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Circle Blur Mask");
+		gd.addChoice("Shape:", SHAPES, shapeOption);
+		gd.addNumericField("Feather width (pixels):", featherOption, 1);
+		gd.addChoice("Fill value:", FILLS, fillOption);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		shapeOption = gd.getNextChoice();
+		featherOption = Math.max(0, gd.getNextNumber());
+		fillOption = gd.getNextChoice();
+		if (shapeOption.equals(SHAPES[3]) && !isAreaRoi(image.getRoi())) {
+			IJ.error("Circle Blur Mask", "Selection shape requires an area selection");
+			return false;
+		}
+		return true;
+	}
+
+	static boolean isAreaRoi(Roi roi) {
+		return (roi != null) && roi.isArea();
 	}
 
 	/**
@@ -44,35 +97,511 @@ public class Circle_Blur_Mask implements PlugInFilter {
 	 * the ImagePlus set above instead).
 	 */
 	public void run(ImageProcessor ip) {
-	    ImageStatistics stats = ip.getStatistics();
-	    // IJ.log("Mean intensity = " + stats.mean);
-	    double avg = stats.mean;
-	    int intAvg = (int)avg;
-	    double centerX = ip.getWidth() / 2.0;
-	    double centerY = ip.getHeight() / 2.0;
-	    double blurRadiusMax = Math.min(centerX, centerY);
-	    double blurRadiusMin = blurRadiusMax - 50;	    
-	    double blurRadiusMaxSquared = blurRadiusMax * blurRadiusMax;
-	    double blurRadiusMinSquared = blurRadiusMin * blurRadiusMin;	    
-	    for (int x = 0; x < ip.getWidth(); ++x) {
-			for (int y = 0; y < ip.getHeight(); ++y) {
-				int val = ip.getPixel(x, y);
-				double dx = x - centerX;
-				double dy = y - centerY;
-				double radiusSquared = dx*dx + dy*dy;
-				// Outside of region, color everything by average value
-				if (radiusSquared > blurRadiusMaxSquared) {
-					ip.putPixelValue(x, y, intAvg);
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		MaskWeights weights;
+		if (shapeOption.equals(SHAPES[0]))
+			weights = RadialWeights.get(width, height, featherOption);
+		else {
+			Roi roi;
+			if (shapeOption.equals(SHAPES[1]))
+				roi = new OvalRoi(0, 0, width, height);
+			else if (shapeOption.equals(SHAPES[2]))
+				roi = new Roi(0, 0, width, height);
+			else
+				roi = image.getRoi();
+			weights = FeatherWeights.get(roi, width, height, featherOption);
+		}
+		// The stack-wide fill value is shared by every slice
+		double fill = Double.NaN;
+		if (fillOption.equals(FILLS[1]))
+			fill = StackStatistics.compute(image.getStack()).mean;
+		else if (fillOption.equals(FILLS[2]))
+			fill = StackStatistics.compute(image.getStack()).median();
+		// The slice mean covers the selection, as ip.getStatistics() does
+		Roi statsRoi = isAreaRoi(image.getRoi()) ? image.getRoi() : null;
+		if (processStack) {
+			applyToStack(image.getStack(), weights, fill, statsRoi);
+			return;
+		}
+		applyToSlice(ip.getPixels(), weights, fill, width, statsRoi);
+	}
+
+	// Mask all slices of the stack, one slice per thread at a time
+	static void applyToStack(final ImageStack stack, final MaskWeights weights, final double fill,
+			final Roi statsRoi) {
+		final int nSlices = stack.getSize();
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger slicesDone = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int n = nextSlice.getAndIncrement(); n <= nSlices; n = nextSlice.getAndIncrement()) {
+						applyToSlice(stack.getPixels(n), weights, fill, stack.getWidth(), statsRoi);
+						IJ.showProgress(slicesDone.incrementAndGet(), nSlices);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+
+	// Blend each pixel toward the fill value (NaN for the mean of the
+	// slice within statsRoi) by its weight, truncating the result to an
+	// integer as the original per-pixel version did.
+	static void applyToSlice(Object pixels, MaskWeights weights, double fill, int width, Roi statsRoi) {
+		weights.apply(pixels, (fill == fill) ? fill : mean(pixels, width, statsRoi));
+	}
+
+	// Pixels in [innerLeft, innerRight) of each row have weight 0 and are skipped
+	static void applyToSlice(byte[] pixels, RadialWeights weights, double avg) {
+		int intAvg = (int)avg;
+		int width = weights.width;
+		for (int y = 0; y < weights.height; ++y) {
+			int qy = weights.rowIndex[y];
+			int row = qy * weights.quadrantWidth;
+			int skipFrom = weights.innerLeft[qy];
+			int skipTo = weights.innerRight[qy];
+			for (int x = 0, i = y * width; x < width; ++x, ++i) {
+				if (x == skipFrom) {
+					i += skipTo - x;
+					x = skipTo;
+					if (x >= width) break;
+				}
+				double alpha2 = weights.weights[row + weights.colIndex[x]];
+				int val = (alpha2 == 1.0) ? intAvg : (int)(alpha2 * avg + (1 - alpha2) * (pixels[i] & 0xff));
+				pixels[i] = (byte)Math.max(0, Math.min(255, val));
+			}
+		}
+	}
+
+	static void applyToSlice(short[] pixels, RadialWeights weights, double avg) {
+		int intAvg = (int)avg;
+		int width = weights.width;
+		for (int y = 0; y < weights.height; ++y) {
+			int qy = weights.rowIndex[y];
+			int row = qy * weights.quadrantWidth;
+			int skipFrom = weights.innerLeft[qy];
+			int skipTo = weights.innerRight[qy];
+			for (int x = 0, i = y * width; x < width; ++x, ++i) {
+				if (x == skipFrom) {
+					i += skipTo - x;
+					x = skipTo;
+					if (x >= width) break;
+				}
+				double alpha2 = weights.weights[row + weights.colIndex[x]];
+				int val = (alpha2 == 1.0) ? intAvg : (int)(alpha2 * avg + (1 - alpha2) * (pixels[i] & 0xffff));
+				pixels[i] = (short)Math.max(0, Math.min(65535, val));
+			}
+		}
+	}
+
+	static void applyToSlice(float[] pixels, RadialWeights weights, double avg) {
+		int intAvg = (int)avg;
+		int width = weights.width;
+		for (int y = 0; y < weights.height; ++y) {
+			int qy = weights.rowIndex[y];
+			int row = qy * weights.quadrantWidth;
+			int skipFrom = weights.innerLeft[qy];
+			int skipTo = weights.innerRight[qy];
+			for (int x = 0, i = y * width; x < width; ++x, ++i) {
+				if (x == skipFrom) {
+					i += skipTo - x;
+					x = skipTo;
+					if (x >= width) break;
 				}
-				else if (radiusSquared > blurRadiusMinSquared) {
-					double radius = Math.sqrt(radiusSquared);
-					double alpha1 = (radius - blurRadiusMin) / (blurRadiusMax - blurRadiusMin);
-					// smooth derivative using cosine
-					double alpha2 = -0.5 * Math.cos(alpha1 * Math.PI) + 0.5;
-					double dVal = alpha2 * avg + (1 - alpha2) * ip.getPixelValue(x, y);
-					ip.putPixelValue(x, y, (int)dVal);
+				double alpha2 = weights.weights[row + weights.colIndex[x]];
+				pixels[i] = (alpha2 == 1.0) ? intAvg : (int)(alpha2 * avg + (1 - alpha2) * pixels[i]);
+			}
+		}
+	}
+
+	// Mean of the pixels inside roi, or of the whole slice if roi is null
+	static double mean(Object pixels, int width, Roi roi) {
+		int height = java.lang.reflect.Array.getLength(pixels) / width;
+		Rectangle r = new Rectangle(0, 0, width, height);
+		ImageProcessor mask = null;
+		if (roi != null) {
+			r = roi.getBounds();
+			mask = roi.getMask();
+		}
+		double sum = 0;
+		long n = 0;
+		for (int y = Math.max(r.y, 0); y < Math.min(r.y + r.height, height); ++y) {
+			for (int x = Math.max(r.x, 0), i = y * width + x; x < Math.min(r.x + r.width, width); ++x, ++i) {
+				if ((mask != null) && (mask.get(x - r.x, y - r.y) == 0))
+					continue;
+				if (pixels instanceof byte[])
+					sum += ((byte[])pixels)[i] & 0xff;
+				else if (pixels instanceof short[])
+					sum += ((short[])pixels)[i] & 0xffff;
+				else
+					sum += ((float[])pixels)[i];
+				n++;
+			}
+		}
+		return (n > 0) ? sum / n : 0;
+	}
+
+	// Weight 0 keeps a pixel, weight 1 replaces it with the fill value
+	interface MaskWeights {
+		void apply(Object pixels, double fill);
+	}
+
+	/**
+	 * Blend weight toward the mean for every pixel position: 0 inside
+	 * the inner radius, 1 outside the outer radius, and a cosine ramp
+	 * across the feather band in between. The mask is symmetric about
+	 * the image centre, so only one quadrant is stored, and pixels are
+	 * mapped to it through colIndex/rowIndex. The most recent table is
+	 * kept for reuse by later slices and runs of the same size.
+	 */
+	static class RadialWeights implements MaskWeights {
+		private static RadialWeights cached;
+
+		final int width;
+		final int height;
+		final double feather;
+		final int[] colIndex; // quadrant column for each x
+		final int[] rowIndex; // quadrant row for each y
+		final int quadrantWidth;
+		final double[] weights; // quadrant weights, row-major
+		final int[] innerLeft; // per quadrant row, first x of the zero-weight run
+		final int[] innerRight; // per quadrant row, end of the zero-weight run
+
+		static synchronized RadialWeights get(int width, int height, double feather) {
+			if ((cached == null) || (cached.width != width) || (cached.height != height)
+					|| (cached.feather != feather))
+				cached = new RadialWeights(width, height, feather);
+			return cached;
+		}
+
+		RadialWeights(int width, int height, double feather) {
+			this.width = width;
+			this.height = height;
+			this.feather = feather;
+			double centerX = width / 2.0;
+			double centerY = height / 2.0;
+			double blurRadiusMax = Math.min(centerX, centerY);
+			double blurRadiusMin = blurRadiusMax - feather;
+			double blurRadiusMaxSquared = blurRadiusMax * blurRadiusMax;
+			double blurRadiusMinSquared = blurRadiusMin * blurRadiusMin;
+			// |x - centerX| takes at most width / 2 + 1 distinct values, one per floor
+			colIndex = new int[width];
+			double[] dxs = new double[width / 2 + 1];
+			for (int x = 0; x < width; ++x) {
+				double dx = Math.abs(x - centerX);
+				colIndex[x] = (int)dx;
+				dxs[colIndex[x]] = dx;
+			}
+			rowIndex = new int[height];
+			double[] dys = new double[height / 2 + 1];
+			for (int y = 0; y < height; ++y) {
+				double dy = Math.abs(y - centerY);
+				rowIndex[y] = (int)dy;
+				dys[rowIndex[y]] = dy;
+			}
+			quadrantWidth = dxs.length;
+			weights = new double[quadrantWidth * dys.length];
+			innerLeft = new int[dys.length];
+			innerRight = new int[dys.length];
+			for (int qy = 0; qy < dys.length; ++qy) {
+				int innerEnd = quadrantWidth; // columns below this have weight 0
+				for (int qx = quadrantWidth - 1; qx >= 0; --qx) {
+					double dx = dxs[qx];
+					double dy = dys[qy];
+					double radiusSquared = dx*dx + dy*dy;
+					double alpha2 = 0;
+					// Outside of region, color everything by average value
+					if (radiusSquared > blurRadiusMaxSquared) {
+						alpha2 = 1.0;
+					}
+					else if (radiusSquared > blurRadiusMinSquared) {
+						double radius = Math.sqrt(radiusSquared);
+						double alpha1 = (radius - blurRadiusMin) / (blurRadiusMax - blurRadiusMin);
+						// smooth derivative using cosine
+						alpha2 = -0.5 * Math.cos(alpha1 * Math.PI) + 0.5;
+					}
+					weights[qy * quadrantWidth + qx] = alpha2;
+					if (alpha2 != 0)
+						innerEnd = qx;
 				}
+				// the columns with weight 0 form one centred run of x
+				int left = 0;
+				while ((left < width) && (colIndex[left] >= innerEnd))
+					++left;
+				int right = left;
+				while ((right < width) && (colIndex[right] < innerEnd))
+					++right;
+				innerLeft[qy] = left;
+				innerRight[qy] = right;
 			}
-	    }
+		}
+
+		public void apply(Object pixels, double fill) {
+			if (pixels instanceof byte[])
+				applyToSlice((byte[])pixels, this, fill);
+			else if (pixels instanceof short[])
+				applyToSlice((short[])pixels, this, fill);
+			else
+				applyToSlice((float[])pixels, this, fill);
+		}
+	}
+
+	/**
+	 * Blend weights for an arbitrary area selection. Inside the selection
+	 * the weight falls from 1 at the edge to 0 at the feather width, with
+	 * the same cosine profile as the circle, using the Euclidean distance
+	 * to the nearest pixel outside it; everything outside has weight 1.
+	 * The image border counts as outside. The most recent map is kept for
+	 * reuse by later slices and runs with the same selection and size.
+	 */
+	static class FeatherWeights implements MaskWeights {
+		private static FeatherWeights cached;
+
+		// the selection's shape when the map was built; a selection can be
+		// moved or edited in place, so it is compared by content
+		final Rectangle bounds;
+		final byte[] mask;
+		final int width;
+		final int height;
+		final double feather;
+		final float[] weights;
+
+		static synchronized FeatherWeights get(Roi roi, int width, int height, double feather) {
+			if ((cached == null) || !cached.sameRoi(roi) || (cached.width != width)
+					|| (cached.height != height) || (cached.feather != feather))
+				cached = new FeatherWeights(roi, width, height, feather);
+			return cached;
+		}
+
+		boolean sameRoi(Roi roi) {
+			return bounds.equals(roi.getBounds()) && Arrays.equals(mask, maskPixels(roi));
+		}
+
+		static byte[] maskPixels(Roi roi) {
+			ImageProcessor mask = roi.getMask();
+			return (mask == null) ? null : (byte[])mask.getPixels();
+		}
+
+		FeatherWeights(Roi roi, int width, int height, double feather) {
+			this.bounds = roi.getBounds();
+			byte[] maskPixels = maskPixels(roi);
+			this.mask = (maskPixels == null) ? null : maskPixels.clone();
+			this.width = width;
+			this.height = height;
+			this.feather = feather;
+			// Pad by one pixel so that the image border counts as outside
+			int w = width + 2;
+			int h = height + 2;
+			float[] distance = new float[w * h];
+			ImageProcessor mask = roi.getMask();
+			Rectangle r = roi.getBounds();
+			for (int y = Math.max(r.y, 0); y < Math.min(r.y + r.height, height); ++y) {
+				for (int x = Math.max(r.x, 0); x < Math.min(r.x + r.width, width); ++x) {
+					if ((mask == null) || (mask.get(x - r.x, y - r.y) != 0))
+						distance[(y + 1) * w + x + 1] = Float.POSITIVE_INFINITY;
+				}
+			}
+			squaredDistanceTransform(distance, w, h);
+			weights = new float[width * height];
+			for (int y = 0; y < height; ++y) {
+				for (int x = 0; x < width; ++x) {
+					double d = Math.sqrt(distance[(y + 1) * w + x + 1]);
+					double alpha2 = 0;
+					if (d == 0) // outside
+						alpha2 = 1.0;
+					else if (d < feather)
+						alpha2 = 0.5 * Math.cos(d / feather * Math.PI) + 0.5;
+					weights[y * width + x] = (float)alpha2;
+				}
+			}
+		}
+
+		public void apply(Object pixels, double fill) {
+			int intFill = (int)fill;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int i = 0; i < p.length; ++i) {
+					float alpha2 = weights[i];
+					if (alpha2 == 0) continue;
+					int val = (alpha2 == 1.0f) ? intFill : (int)(alpha2 * fill + (1 - alpha2) * (p[i] & 0xff));
+					p[i] = (byte)Math.max(0, Math.min(255, val));
+				}
+			}
+			else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for (int i = 0; i < p.length; ++i) {
+					float alpha2 = weights[i];
+					if (alpha2 == 0) continue;
+					int val = (alpha2 == 1.0f) ? intFill : (int)(alpha2 * fill + (1 - alpha2) * (p[i] & 0xffff));
+					p[i] = (short)Math.max(0, Math.min(65535, val));
+				}
+			}
+			else {
+				float[] p = (float[])pixels;
+				for (int i = 0; i < p.length; ++i) {
+					float alpha2 = weights[i];
+					if (alpha2 == 0) continue;
+					p[i] = (alpha2 == 1.0f) ? intFill : (int)(alpha2 * fill + (1 - alpha2) * p[i]);
+				}
+			}
+		}
+	}
+
+	// In-place squared Euclidean distance transform of a w x h grid, where
+	// zero marks the features and +Infinity everything else. Separable and
+	// linear time: one lower-envelope-of-parabolas pass over the columns,
+	// then one over the rows (Felzenszwalb & Huttenlocher).
+	static void squaredDistanceTransform(float[] grid, int w, int h) {
+		int n = Math.max(w, h);
+		float[] f = new float[n];
+		float[] d = new float[n];
+		int[] v = new int[n];
+		double[] z = new double[n + 1];
+		for (int x = 0; x < w; ++x) {
+			for (int y = 0; y < h; ++y)
+				f[y] = grid[y * w + x];
+			distanceTransform1D(f, h, d, v, z);
+			for (int y = 0; y < h; ++y)
+				grid[y * w + x] = d[y];
+		}
+		for (int y = 0; y < h; ++y) {
+			System.arraycopy(grid, y * w, f, 0, w);
+			distanceTransform1D(f, w, d, v, z);
+			System.arraycopy(d, 0, grid, y * w, w);
+		}
+	}
+
+	static void distanceTransform1D(float[] f, int n, float[] d, int[] v, double[] z) {
+		int k = -1;
+		for (int q = 0; q < n; ++q) {
+			if (f[q] == Float.POSITIVE_INFINITY)
+				continue;
+			double s = 0;
+			while (k >= 0) {
+				s = ((f[q] + (double)q * q) - (f[v[k]] + (double)v[k] * v[k])) / (2.0 * (q - v[k]));
+				if (s > z[k])
+					break;
+				--k;
+			}
+			++k;
+			v[k] = q;
+			z[k] = (k == 0) ? Double.NEGATIVE_INFINITY : s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+		if (k < 0) { // no features in this line
+			for (int q = 0; q < n; ++q)
+				d[q] = Float.POSITIVE_INFINITY;
+			return;
+		}
+		k = 0;
+		for (int q = 0; q < n; ++q) {
+			while (z[k + 1] < q)
+				++k;
+			double dq = q - v[k];
+			d[q] = (float)(dq * dq + f[v[k]]);
+		}
+	}
+
+	/**
+	 * Mean and median of every pixel in a stack, gathered in one pass.
+	 * 8-bit and 16-bit medians are exact. 32-bit values are binned by
+	 * the top 16 bits of their order-preserving bit pattern, which gives
+	 * the median to within about 1% without a separate range pass.
+	 */
+	static class StackStatistics {
+		double mean;
+		long[] histogram;
+		boolean floatBins;
+
+		static StackStatistics compute(final ImageStack stack) {
+			final int nSlices = stack.getSize();
+			final boolean isFloat = stack.getPixels(1) instanceof float[];
+			final int nBins = (stack.getPixels(1) instanceof byte[]) ? 256 : 65536;
+			final AtomicInteger nextSlice = new AtomicInteger(1);
+			final Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+			final long[][] histograms = new long[threads.length][];
+			final double[] sums = new double[threads.length];
+			for (int t = 0; t < threads.length; ++t) {
+				final int thread = t;
+				threads[t] = new Thread() {
+					public void run() {
+						long[] histogram = new long[nBins];
+						double sum = 0;
+						for (int n = nextSlice.getAndIncrement(); n <= nSlices; n = nextSlice.getAndIncrement()) {
+							Object pixels = stack.getPixels(n);
+							if (pixels instanceof byte[]) {
+								byte[] p = (byte[])pixels;
+								for (int i = 0; i < p.length; ++i)
+									histogram[p[i] & 0xff]++;
+							}
+							else if (pixels instanceof short[]) {
+								short[] p = (short[])pixels;
+								for (int i = 0; i < p.length; ++i)
+									histogram[p[i] & 0xffff]++;
+							}
+							else {
+								float[] p = (float[])pixels;
+								for (int i = 0; i < p.length; ++i) {
+									if (p[i] != p[i]) continue; // NaN
+									sum += p[i];
+									histogram[floatBin(p[i])]++;
+								}
+							}
+						}
+						histograms[thread] = histogram;
+						sums[thread] = sum;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+			StackStatistics result = new StackStatistics();
+			result.floatBins = isFloat;
+			result.histogram = new long[nBins];
+			double sum = 0;
+			long count = 0;
+			for (int t = 0; t < threads.length; ++t) {
+				sum += sums[t];
+				for (int b = 0; b < nBins; ++b)
+					result.histogram[b] += histograms[t][b];
+			}
+			for (int b = 0; b < nBins; ++b) {
+				if (!isFloat)
+					sum += (double)b * result.histogram[b];
+				count += result.histogram[b];
+			}
+			result.mean = (count > 0) ? sum / count : 0;
+			return result;
+		}
+
+		double median() {
+			long count = 0;
+			for (int b = 0; b < histogram.length; ++b)
+				count += histogram[b];
+			long half = (count + 1) / 2;
+			long below = 0;
+			for (int b = 0; b < histogram.length; ++b) {
+				below += histogram[b];
+				if (below >= half)
+					return floatBins ? binValue(b) : b;
+			}
+			return 0;
+		}
+
+		// Maps float ordering onto unsigned 16-bit bin ordering
+		static int floatBin(float val) {
+			int bits = Float.floatToRawIntBits(val);
+			bits ^= (bits >> 31) & 0x7fffffff;
+			return (bits >>> 16) ^ 0x8000;
+		}
+
+		// Value near the middle of a float bin
+		static float binValue(int bin) {
+			int bits = ((bin ^ 0x8000) << 16) | 0x8000;
+			bits ^= (bits >> 31) & 0x7fffffff;
+			return Float.intBitsToFloat(bits);
+		}
 	}
 }
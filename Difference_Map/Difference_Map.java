@@ -1,7 +1,26 @@
 import ij.plugin.PlugIn;
 import ij.*;
 import ij.gui.*;
+import ij.io.FileInfo;
+import ij.io.SaveDialog;
+import ij.io.TiffEncoder;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
 import ij.process.*;
+import ij.util.ThreadUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is a template for a plugin that does not require one image
@@ -9,6 +28,25 @@ import ij.process.*;
  * choose more than one image in a dialog).
  */
 public class Difference_Map implements PlugIn {
+	static final String[] MODES = {"Image1 and Image2", "Image1 against all others", "All pairs"};
+	static String modeOption = MODES[0];
+	static int channel1Option = 1;
+	static int channel2Option = 1;
+	static boolean streamOption = false;
+	static final String[] OUTPUTS = {"RGB (magenta/green)", "32-bit difference", "16-bit offset difference"};
+	static String outputOption = OUTPUTS[0];
+	static boolean statisticsOption = false;
+	static double thresholdOption = 100;
+
+	static final int OFFSET = 32768; // zero difference in 16-bit output
+
+	// Output format, one of OUTPUTS; used for 8 and 16 bit inputs
+	String format = OUTPUTS[0];
+	// Per-slice summary rows are added here when not null
+	ResultsTable statistics;
+	// Unscaled difference counted by "Fraction over threshold"
+	double threshold = thresholdOption;
+
 	/**
 	 * This method gets called by ImageJ / Fiji.
 	 *
@@ -19,6 +57,7 @@ public class Difference_Map implements PlugIn {
 		int nImages = WindowManager.getImageCount();
 		if (nImages < 1) {
 			IJ.error("No images are open!");
+			return;
 		}
 		
 		int[] imageWindowIDs = WindowManager.getIDList();
@@ -33,23 +72,151 @@ public class Difference_Map implements PlugIn {
 		int ix = 1;
 		if (nImages < 2) {ix = 0;}
 		dlg.addChoice("Image2:", titles, titles[ix]);
+		dlg.addNumericField("Channel1:", channel1Option, 0);
+		dlg.addNumericField("Channel2:", channel2Option, 0);
+		dlg.addChoice("Compare:", MODES, modeOption);
+		dlg.addMessage("In batch modes Image1/Channel1 is the reference and\n"
+				+ "Channel2 is used for every other image.");
+		dlg.addCheckbox("Stream to disk (always on for virtual stacks)", streamOption);
+		dlg.addChoice("Output:", OUTPUTS, outputOption);
+		dlg.addCheckbox("Slice statistics", statisticsOption);
+		dlg.addNumericField("Statistics threshold:", thresholdOption, 1);
 		
 		dlg.showDialog();
 		if (dlg.wasCanceled()) return;
 
 		ImagePlus imp1 = WindowManager.getImage(dlg.getNextChoice());
 		ImagePlus imp2 = WindowManager.getImage(dlg.getNextChoice());
-		Object[] result = exec(imp1, 1, imp2, 1);
-		if (null != result) {
-			ImagePlus diff = (ImagePlus) result[0];
-			diff.show();
-		}	
+		channel1Option = (int)dlg.getNextNumber();
+		channel2Option = (int)dlg.getNextNumber();
+		modeOption = dlg.getNextChoice();
+		streamOption = dlg.getNextBoolean();
+		outputOption = dlg.getNextChoice();
+		statisticsOption = dlg.getNextBoolean();
+		thresholdOption = dlg.getNextNumber();
+		format = outputOption;
+		threshold = thresholdOption;
+		if (statisticsOption)
+			statistics = new ResultsTable();
+
+		// Pairs to compare, grouped by the image they are compared against
+		List<ImagePlus> references = new ArrayList<ImagePlus>();
+		List<ImagePlus[]> comparisons = new ArrayList<ImagePlus[]>();
+		if (modeOption.equals(MODES[0])) {
+			references.add(imp1);
+			comparisons.add(new ImagePlus[] {imp2});
+		}
+		else if (modeOption.equals(MODES[1])) {
+			List<ImagePlus> others = new ArrayList<ImagePlus>();
+			for (int id : imageWindowIDs) {
+				ImagePlus imp = WindowManager.getImage(id);
+				if ((imp != imp1) && hasChannel(imp, channel2Option))
+					others.add(imp);
+			}
+			references.add(imp1);
+			comparisons.add(others.toArray(new ImagePlus[others.size()]));
+		}
+		else {
+			for (int i = 0; i < nImages; ++i) {
+				List<ImagePlus> others = new ArrayList<ImagePlus>();
+				for (int j = i + 1; j < nImages; ++j) {
+					ImagePlus imp = WindowManager.getImage(imageWindowIDs[j]);
+					if (hasChannel(imp, channel2Option))
+						others.add(imp);
+				}
+				ImagePlus reference = WindowManager.getImage(imageWindowIDs[i]);
+				if (!others.isEmpty() && hasChannel(reference, channel1Option)) {
+					references.add(reference);
+					comparisons.add(others.toArray(new ImagePlus[others.size()]));
+				}
+			}
+		}
+
+		boolean stream = streamOption;
+		for (int r = 0; r < references.size(); ++r) {
+			if (references.get(r).getStack().isVirtual())
+				stream = true;
+			for (ImagePlus other : comparisons.get(r))
+				if (other.getStack().isVirtual())
+					stream = true;
+		}
+		if (stream) {
+			String directory = null;
+			for (int r = 0; r < references.size(); ++r) {
+				ImagePlus reference = references.get(r);
+				for (ImagePlus other : comparisons.get(r)) {
+					if (!isIntegerType(reference) || !isIntegerType(other)) {
+						IJ.error("Difference Map", "Streaming to disk needs 8 or 16 bit images.");
+						return;
+					}
+					String path;
+					if (modeOption.equals(MODES[0])) {
+						SaveDialog sd = new SaveDialog("Save difference map", "Difference_" + reference.getShortTitle(), ".tif");
+						if (sd.getFileName() == null)
+							return;
+						path = sd.getDirectory() + sd.getFileName();
+					}
+					else {
+						if (directory == null)
+							directory = IJ.getDirectory("Output directory for difference maps");
+						if (directory == null)
+							return;
+						path = directory + "Difference_" + reference.getShortTitle()
+								+ "_" + other.getShortTitle() + ".tif";
+					}
+					if (!execToFile(reference, channel1Option, other, channel2Option, path))
+						return;
+					IJ.showStatus("Difference map written to " + path);
+				}
+			}
+			if (statistics != null)
+				statistics.show("Difference statistics");
+			return;
+		}
+		for (int r = 0; r < references.size(); ++r) {
+			ImagePlus reference = references.get(r);
+			ImagePlus[] others = comparisons.get(r);
+			boolean integer = isIntegerType(reference);
+			for (ImagePlus other : others)
+				integer &= isIntegerType(other);
+			if (integer) {
+				ImagePlus[] diffs = execBatch(reference, channel1Option, others, channel2Option);
+				if (diffs == null)
+					return;
+				for (ImagePlus diff : diffs)
+					diff.show();
+			}
+			else {
+				for (ImagePlus other : others) {
+					Object[] result = exec(reference, channel1Option, other, channel2Option);
+					if (null != result) {
+						ImagePlus diff = (ImagePlus) result[0];
+						diff.show();
+					}	
+				}
+			}
+		}
+		if (statistics != null)
+			statistics.show("Difference statistics");
 	}
 
+	/**
+	 * Compare one channel of imp1 with one channel of imp2, Z slice by Z
+	 * slice and frame by frame, over the Z slices and frames they share.
+	 */
 	public Object[] exec(ImagePlus imp1, int channel1, ImagePlus imp2, int channel2) {
+		if (!checkChannel(imp1, channel1) || !checkChannel(imp2, channel2))
+			return null;
+		if (isIntegerType(imp1) && isIntegerType(imp2))
+			return execTables(imp1, channel1, imp2, channel2);
+		if (!format.equals(OUTPUTS[0]) || (statistics != null))
+			IJ.log("Difference Map: " + imp1.getTitle() + " and " + imp2.getTitle()
+					+ " are not both 8 or 16 bit; writing an RGB map without slice statistics.");
 		int width = Math.min(imp1.getWidth(), imp2.getWidth());
 		int height = Math.min(imp1.getHeight(), imp2.getHeight());
-		int nSlices = Math.min(imp1.getNSlices(), imp2.getNSlices());
+		int[] indices1 = planeIndices(imp1, channel1, imp2);
+		int[] indices2 = planeIndices(imp2, channel2, imp1);
+		int nSlices = indices1.length - 1; // Z slices times frames
 		ImagePlus diffImg = NewImage.createRGBImage(
 				"Difference of " + imp1.getTitle() + " and " + imp2.getTitle(), 
 				width, height, nSlices, NewImage.FILL_BLACK);
@@ -62,8 +229,8 @@ public class Difference_Map implements PlugIn {
 		for (int slice = 1; slice <= nSlices; ++slice) 
 		{
 			IJ.showProgress(slice, nSlices * 2);
-			ImageProcessor ip1 = imp1.getStack().getProcessor(slice);
-			ImageProcessor ip2 = imp2.getStack().getProcessor(slice);
+			ImageProcessor ip1 = imp1.getStack().getProcessor(indices1[slice]);
+			ImageProcessor ip2 = imp2.getStack().getProcessor(indices2[slice]);
 			// 1 - compute scale factor for this slice
 			// in log space, to include gamma correction
 			// and to reduce effect of saturated pixels
@@ -118,8 +285,8 @@ public class Difference_Map implements PlugIn {
 		for (int slice = 1; slice <= nSlices; ++slice) 
 		{
 			IJ.showProgress(nSlices + slice, nSlices * 2);
-			ImageProcessor ip1 = imp1.getStack().getProcessor(slice);
-			ImageProcessor ip2 = imp2.getStack().getProcessor(slice);
+			ImageProcessor ip1 = imp1.getStack().getProcessor(indices1[slice]);
+			ImageProcessor ip2 = imp2.getStack().getProcessor(indices2[slice]);
 			ImageProcessor ipDiff = diffImg.getStack().getProcessor(slice);
 			// 3 - apply difference
 			int[] rgb = new int[3];
@@ -149,6 +316,749 @@ public class Difference_Map implements PlugIn {
 				
 			}
 		}
+		setPlaneDimensions(diffImg, imp1, imp2);
 		return new Object[]{diffImg};
 	}
+
+	static boolean isIntegerType(ImagePlus imp) {
+		return (imp.getType() == ImagePlus.GRAY8) || (imp.getType() == ImagePlus.GRAY16);
+	}
+
+	static boolean hasChannel(ImagePlus imp, int channel) {
+		return (channel >= 1) && (channel <= imp.getNChannels());
+	}
+
+	static boolean checkChannel(ImagePlus imp, int channel) {
+		if (hasChannel(imp, channel))
+			return true;
+		IJ.error("Difference Map", imp.getTitle() + " has no channel " + channel);
+		return false;
+	}
+
+	// Stack index in imp of each compared plane (numbered from 1): Z
+	// slices of the first frame, then of the next, over the Z slices and
+	// frames imp shares with other.
+	static int[] planeIndices(ImagePlus imp, int channel, ImagePlus other) {
+		int nSlices = Math.min(imp.getNSlices(), other.getNSlices());
+		int nFrames = Math.min(imp.getNFrames(), other.getNFrames());
+		int[] indices = new int[nSlices * nFrames + 1];
+		for (int t = 1; t <= nFrames; ++t)
+			for (int z = 1; z <= nSlices; ++z)
+				indices[(t - 1) * nSlices + z] = imp.getStackIndex(channel, z, t);
+		return indices;
+	}
+
+	static void setPlaneDimensions(ImagePlus diffImg, ImagePlus imp1, ImagePlus imp2) {
+		int nFrames = Math.min(imp1.getNFrames(), imp2.getNFrames());
+		if (nFrames > 1) {
+			diffImg.setDimensions(1, diffImg.getStackSize() / nFrames, nFrames);
+			diffImg.setOpenAsHyperStack(true);
+		}
+	}
+
+	Object[] execTables(ImagePlus imp1, int channel1, ImagePlus imp2, int channel2) {
+		ImagePlus[] diffs = execBatch(imp1, channel1, new ImagePlus[] {imp2}, channel2);
+		if (diffs == null)
+			return null;
+		return (statistics == null) ? new Object[]{diffs[0]} : new Object[]{diffs[0], statistics};
+	}
+
+	/**
+	 * Same three passes as exec, comparing one reference with each of
+	 * several 8 or 16 bit (including 12 bit) images. Pixel values are
+	 * integers, so log(v + 1) comes from one table for the whole run, and
+	 * the fitted exp(m log(v + 1) + b) - 1 from a per-slice table over the
+	 * values present in the reference. Pixels are read row by row from
+	 * the pixel arrays.
+	 *
+	 * Reference slices are shared between threads and each is read once
+	 * for all comparisons. A thread fits and scans the slice against every
+	 * other image straight away, keeping its own largest difference per
+	 * comparison, and stores the unscaled difference in a DiffBuffer; once
+	 * the largest difference of each comparison is known, the output pass
+	 * only scales and colours the stored differences.
+	 *
+	 * The 32-bit and 16-bit output formats hold the unscaled difference
+	 * itself (the 16-bit one rounded and offset by 32768), so they are
+	 * written during the scan and need neither the buffer nor the output
+	 * pass; the magenta/green rendering is left to a LUT and a display
+	 * range of plus and minus the largest difference.
+	 *
+	 * @return one difference image per image in others, or null on failure
+	 */
+	public ImagePlus[] execBatch(ImagePlus reference, final int channel1, final ImagePlus[] others, final int channel2) {
+		if (!checkChannel(reference, channel1))
+			return null;
+		for (ImagePlus imp2 : others)
+			if (!checkChannel(imp2, channel2))
+				return null;
+		final ImageStack stack1 = reference.getStack();
+		final int width1 = reference.getWidth();
+		final int nRefSlices = reference.getNSlices();
+		final int nRefPlanes = nRefSlices * reference.getNFrames();
+		final int nComparisons = others.length;
+		final Comparison[] comparisons = new Comparison[nComparisons];
+		double[] logTable = logTable(reference, reference);
+		long bytes = 0;
+		int totalPlanes = 0;
+		for (int j = 0; j < nComparisons; ++j) {
+			comparisons[j] = new Comparison(reference, others[j]);
+			if (logTable.length < 65536)
+				logTable = logTable(reference, others[j]);
+			bytes += 4L * comparisons[j].width * comparisons[j].height * comparisons[j].nPlanes;
+			totalPlanes += comparisons[j].nPlanes;
+		}
+		final double[] finalLogTable = logTable;
+		final boolean rgbOutput = format.equals(OUTPUTS[0]);
+		final int nSteps = rgbOutput ? totalPlanes * 2 : totalPlanes;
+		boolean spill = DiffBuffer.shouldSpill(bytes);
+		try {
+			for (Comparison c : comparisons) {
+				if (rgbOutput)
+					c.diffs = new DiffBuffer(c.width * c.height, c.nPlanes, spill);
+				else
+					c.diffImg = createOutput(format, reference, c.imp2, c.width, c.height, c.nPlanes);
+			}
+		} catch (IOException e) {
+			for (Comparison c : comparisons)
+				if (c.diffs != null)
+					c.diffs.close();
+			IJ.error("Difference Map", "Could not create a temporary file: " + e.getMessage());
+			return null;
+		}
+		final AtomicInteger nextPlane = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), Math.max(1, nRefPlanes)));
+		final double[][] threadMaxDiff = new double[threads.length][nComparisons];
+		final IOException[] failure = new IOException[1];
+		for (int t = 0; t < threads.length; ++t) {
+			final double[] maxDiff = threadMaxDiff[t];
+			threads[t] = new Thread() {
+				public void run() {
+					int[] row1 = new int[0];
+					int[] row2 = new int[0];
+					float[][] diffs = new float[nComparisons][];
+					for (int k = nextPlane.getAndIncrement(); k < nRefPlanes; k = nextPlane.getAndIncrement()) {
+						int z = k % nRefSlices + 1;
+						int frame = k / nRefSlices + 1;
+						Object pixels1 = null;
+						for (int j = 0; j < nComparisons; ++j) {
+							Comparison c = comparisons[j];
+							if ((z > c.nSlices) || (frame > c.nFrames))
+								continue;
+							if (pixels1 == null)
+								pixels1 = stack1.getPixels(reference.getStackIndex(channel1, z, frame));
+							Object pixels2 = c.stack2.getPixels(c.imp2.getStackIndex(channel2, z, frame));
+							int width = c.width;
+							int height = c.height;
+							if (row1.length != width) {
+								row1 = new int[width];
+								row2 = new int[width];
+							}
+							if (diffs[j] == null)
+								diffs[j] = new float[width * height];
+							float[] diff = diffs[j];
+							// 1 - fit logY = m * logX + b, skipping saturated pixels
+							SliceFit fit = new SliceFit(pixels1, width1, pixels2, c.width2, width, height, finalLogTable, row1, row2);
+							double[] scaled = fit.scaledValues(finalLogTable);
+
+							// 2) Scale to +- 255, keeping the unrounded difference
+							double sliceMax = maxDiff[j];
+							double sumAbs = 0, sumSq = 0;
+							long over = 0;
+							for (int y = 0; y < height; ++y) {
+								getRow(pixels1, y * width1, row1);
+								getRow(pixels2, y * c.width2, row2);
+								for (int x = 0; x < width; ++x) {
+									double scaledX = scaled[row1[x]];
+									float d = (float)(scaledX - row2[x]);
+									diff[y * width + x] = d;
+									sliceMax = Math.max(Math.abs((int)Math.round(scaledX) - row2[x]), sliceMax);
+									sumAbs += Math.abs(d);
+									sumSq += d * d;
+									if (Math.abs(d) > threshold)
+										++over;
+								}
+							}
+							maxDiff[j] = sliceMax;
+							int plane = c.plane(z, frame);
+							c.stats.set(plane, sumAbs, sumSq, over);
+							if (rgbOutput) {
+								try {
+									c.diffs.put(plane, diff);
+								} catch (IOException e) {
+									failure[0] = e;
+									return;
+								}
+							}
+							else
+								storeDifference(diff, c.diffImg.getStack().getPixels(plane));
+							IJ.showProgress(done.incrementAndGet(), nSteps);
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		if (failure[0] != null) {
+			for (Comparison c : comparisons)
+				if (c.diffs != null)
+					c.diffs.close();
+			IJ.error("Difference Map", "Could not write temporary file: " + failure[0].getMessage());
+			return null;
+		}
+		final int[] firstTask = new int[nComparisons + 1];
+		for (int j = 0; j < nComparisons; ++j) {
+			Comparison c = comparisons[j];
+			double maxDiff = 0; // for scaling entire stack
+			for (double[] threadMax : threadMaxDiff)
+				maxDiff = Math.max(maxDiff, threadMax[j]);
+			c.scale = (maxDiff > 0) ? 255.0 / maxDiff : 1.0;
+			if (rgbOutput) {
+				c.diffImg = NewImage.createRGBImage(
+						"Difference of " + reference.getTitle() + " and " + c.imp2.getTitle(), 
+						c.width, c.height, c.nPlanes, NewImage.FILL_BLACK);
+				firstTask[j + 1] = firstTask[j] + c.nPlanes;
+			}
+			else {
+				setDifferenceDisplay(c.diffImg, maxDiff);
+				firstTask[j + 1] = firstTask[j];
+			}
+			if (statistics != null)
+				c.stats.addTo(statistics, reference.getTitle(), c.imp2.getTitle(), c.nSlices);
+		}
+
+		// 3 - apply difference, over every plane of every comparison
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					int j = 0;
+					float[] diff = new float[0];
+					for (int task = nextTask.getAndIncrement(); task < firstTask[nComparisons]; task = nextTask.getAndIncrement()) {
+						while (task >= firstTask[j + 1])
+							++j;
+						Comparison c = comparisons[j];
+						int plane = task - firstTask[j] + 1;
+						if (diff.length != c.width * c.height)
+							diff = new float[c.width * c.height];
+						try {
+							c.diffs.get(plane, diff);
+						} catch (IOException e) {
+							failure[0] = e;
+							return;
+						}
+						int[] rgb = (int[])c.diffImg.getStack().getPixels(plane);
+						for (int i = 0; i < rgb.length; ++i)
+							rgb[i] = toRGB((int)Math.round(diff[i] * c.scale));
+						IJ.showProgress(done.incrementAndGet(), nSteps);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		ImagePlus[] result = new ImagePlus[nComparisons];
+		for (int j = 0; j < nComparisons; ++j) {
+			if (comparisons[j].diffs != null)
+				comparisons[j].diffs.close();
+			result[j] = comparisons[j].diffImg;
+			setPlaneDimensions(result[j], reference, comparisons[j].imp2);
+		}
+		if (failure[0] != null) {
+			IJ.error("Difference Map", "Could not read temporary file: " + failure[0].getMessage());
+			return null;
+		}
+		IJ.showProgress(1.0);
+		return result;
+	}
+
+	/**
+	 * One image compared with the reference of a batch: the region, Z
+	 * slices and frames they share, and the state of the comparison.
+	 */
+	static class Comparison {
+		final ImagePlus imp2;
+		final ImageStack stack2;
+		final int width2;
+		final int width, height;
+		final int nSlices, nFrames, nPlanes;
+		final SliceStatistics stats;
+		DiffBuffer diffs;
+		double scale;
+		ImagePlus diffImg;
+
+		Comparison(ImagePlus reference, ImagePlus imp2) {
+			this.imp2 = imp2;
+			stack2 = imp2.getStack();
+			width2 = imp2.getWidth();
+			width = Math.min(reference.getWidth(), width2);
+			height = Math.min(reference.getHeight(), imp2.getHeight());
+			nSlices = Math.min(reference.getNSlices(), imp2.getNSlices());
+			nFrames = Math.min(reference.getNFrames(), imp2.getNFrames());
+			nPlanes = nSlices * nFrames;
+			stats = new SliceStatistics(nPlanes, width * height);
+		}
+
+		int plane(int z, int frame) {
+			return (frame - 1) * nSlices + z;
+		}
+	}
+
+	/**
+	 * Sums of the unscaled difference for each compared plane, reported
+	 * as mean absolute difference, RMS difference and the fraction of
+	 * pixels whose absolute difference is over the threshold.
+	 */
+	static class SliceStatistics {
+		final double[] sumAbs, sumSq;
+		final long[] over;
+		final long nPixels;
+
+		SliceStatistics(int nPlanes, long nPixels) {
+			sumAbs = new double[nPlanes + 1];
+			sumSq = new double[nPlanes + 1];
+			over = new long[nPlanes + 1];
+			this.nPixels = nPixels;
+		}
+
+		void set(int plane, double sumAbs, double sumSq, long over) {
+			this.sumAbs[plane] = sumAbs;
+			this.sumSq[plane] = sumSq;
+			this.over[plane] = over;
+		}
+
+		void addTo(ResultsTable rt, String title1, String title2, int nSlices) {
+			for (int plane = 1; plane < sumAbs.length; ++plane) {
+				rt.incrementCounter();
+				rt.addValue("Image1", title1);
+				rt.addValue("Image2", title2);
+				rt.addValue("Slice", (plane - 1) % nSlices + 1);
+				rt.addValue("Frame", (plane - 1) / nSlices + 1);
+				rt.addValue("Mean abs diff", sumAbs[plane] / nPixels);
+				rt.addValue("RMS diff", Math.sqrt(sumSq[plane] / nPixels));
+				rt.addValue("Fraction over threshold", (double)over[plane] / nPixels);
+			}
+		}
+	}
+
+	static ImagePlus createOutput(String format, ImagePlus imp1, ImagePlus imp2, int width, int height, int nPlanes) {
+		String title = "Difference of " + imp1.getTitle() + " and " + imp2.getTitle();
+		if (format.equals(OUTPUTS[1]))
+			return NewImage.createFloatImage(title, width, height, nPlanes, NewImage.FILL_BLACK);
+		return NewImage.createShortImage(title, width, height, nPlanes, NewImage.FILL_BLACK);
+	}
+
+	// Unscaled difference into 32-bit pixels, or rounded and offset into 16-bit pixels
+	static void storeDifference(float[] diff, Object pixels) {
+		if (pixels instanceof float[]) {
+			System.arraycopy(diff, 0, pixels, 0, diff.length);
+			return;
+		}
+		short[] shorts = (short[])pixels;
+		for (int i = 0; i < diff.length; ++i)
+			shorts[i] = (short)Math.max(0, Math.min(65535, Math.round(diff[i]) + OFFSET));
+	}
+
+	// Show 32-bit or 16-bit differences the way the RGB output colours them
+	static void setDifferenceDisplay(ImagePlus diffImg, double maxDiff) {
+		if (maxDiff <= 0)
+			maxDiff = 1;
+		diffImg.setLut(differenceLUT());
+		if (diffImg.getBitDepth() == 16) {
+			Calibration cal = diffImg.getCalibration();
+			cal.setFunction(Calibration.STRAIGHT_LINE, new double[] {-OFFSET, 1}, "difference");
+			diffImg.setDisplayRange(OFFSET - maxDiff, OFFSET + maxDiff);
+		}
+		else
+			diffImg.setDisplayRange(-maxDiff, maxDiff);
+	}
+
+	// Green below the middle of the display range, magenta above it
+	static LUT differenceLUT() {
+		byte[] reds = new byte[256];
+		byte[] greens = new byte[256];
+		byte[] blues = new byte[256];
+		for (int i = 0; i < 256; ++i) {
+			int diff = (int)Math.round((i - 127.5) * 255 / 127.5);
+			int rgb = toRGB(diff);
+			reds[i] = (byte)(rgb >> 16);
+			greens[i] = (byte)(rgb >> 8);
+			blues[i] = (byte)rgb;
+		}
+		return new LUT(reds, greens, blues);
+	}
+
+	/**
+	 * Bounded memory version of execTables for stacks that do not fit in
+	 * memory, which may be virtual. A first pass reads each pair of slices
+	 * once to fit it and find the largest difference, keeping only the fit;
+	 * the colour coded slices are then computed one at a time as the TIFF
+	 * encoder asks for them and written straight to path.
+	 *
+	 * @return false if the output could not be written
+	 */
+	public boolean execToFile(ImagePlus imp1, int channel1, ImagePlus imp2, int channel2, String path) {
+		if (!checkChannel(imp1, channel1) || !checkChannel(imp2, channel2))
+			return false;
+		final int width = Math.min(imp1.getWidth(), imp2.getWidth());
+		final int height = Math.min(imp1.getHeight(), imp2.getHeight());
+		final int[] indices1 = planeIndices(imp1, channel1, imp2);
+		final int[] indices2 = planeIndices(imp2, channel2, imp1);
+		final int nSlices = indices1.length - 1; // Z slices times frames
+		final int nFrames = Math.min(imp1.getNFrames(), imp2.getNFrames());
+		final ImageStack stack1 = imp1.getStack();
+		final ImageStack stack2 = imp2.getStack();
+		final int width1 = imp1.getWidth();
+		final int width2 = imp2.getWidth();
+		final double[] logTable = logTable(imp1, imp2);
+
+		// 1 - statistics only, slices shared between threads
+		final SliceFit[] fits = new SliceFit[nSlices + 1];
+		final SliceStatistics stats = new SliceStatistics(nSlices, (long)width * height);
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger done = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), nSlices));
+		final double[] threadMaxDiff = new double[threads.length];
+		for (int t = 0; t < threads.length; ++t) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					int[] row1 = new int[width];
+					int[] row2 = new int[width];
+					double maxDiff = 0;
+					for (int slice = nextSlice.getAndIncrement(); slice <= nSlices; slice = nextSlice.getAndIncrement()) {
+						Object pixels1 = stack1.getPixels(indices1[slice]);
+						Object pixels2 = stack2.getPixels(indices2[slice]);
+						SliceFit fit = new SliceFit(pixels1, width1, pixels2, width2, width, height, logTable, row1, row2);
+						double[] scaled = fit.scaledValues(logTable);
+						double sumAbs = 0, sumSq = 0;
+						long over = 0;
+						for (int y = 0; y < height; ++y) {
+							getRow(pixels1, y * width1, row1);
+							getRow(pixels2, y * width2, row2);
+							for (int x = 0; x < width; ++x) {
+								double scaledX = scaled[row1[x]];
+								float d = (float)(scaledX - row2[x]);
+								maxDiff = Math.max(Math.abs((int)Math.round(scaledX) - row2[x]), maxDiff);
+								sumAbs += Math.abs(d);
+								sumSq += d * d;
+								if (Math.abs(d) > threshold)
+									++over;
+							}
+						}
+						stats.set(slice, sumAbs, sumSq, over);
+						fits[slice] = fit;
+						IJ.showProgress(done.incrementAndGet(), nSlices * 2);
+					}
+					threadMaxDiff[thread] = maxDiff;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		double maxDiff = 0;
+		for (double threadMax : threadMaxDiff)
+			maxDiff = Math.max(maxDiff, threadMax);
+		double scale = (maxDiff > 0) ? 255.0 / maxDiff : 1.0;
+		if (statistics != null)
+			stats.addTo(statistics, imp1.getTitle(), imp2.getTitle(), nSlices / nFrames);
+
+		// 2 - colour code and write one slice at a time
+		DifferenceStream stream = new DifferenceStream(stack1, indices1, width1, stack2, indices2, width2,
+				width, height, fits, logTable, scale, format);
+		Calibration cal = imp1.getCalibration();
+		File file = new File(path);
+		FileInfo fi = new FileInfo();
+		fi.fileFormat = FileInfo.TIFF;
+		double displayMax = (maxDiff > 0) ? maxDiff : 1;
+		String display = "";
+		if (format.equals(OUTPUTS[0]))
+			fi.fileType = FileInfo.RGB;
+		else if (format.equals(OUTPUTS[1])) {
+			fi.fileType = FileInfo.GRAY32_FLOAT;
+			display = "min=" + (-displayMax) + "\nmax=" + displayMax + "\n";
+		}
+		else {
+			fi.fileType = FileInfo.GRAY16_UNSIGNED;
+			display = "cf=" + Calibration.STRAIGHT_LINE + "\nc0=" + (double)(-OFFSET) + "\nc1=1.0\nvunit=difference\n"
+					+ "min=" + (OFFSET - displayMax) + "\nmax=" + (OFFSET + displayMax) + "\n";
+		}
+		fi.fileName = file.getName();
+		fi.directory = file.getParent();
+		fi.width = width;
+		fi.height = height;
+		fi.nImages = nSlices;
+		fi.pixelWidth = cal.pixelWidth;
+		fi.pixelHeight = cal.pixelHeight;
+		fi.pixelDepth = cal.pixelDepth;
+		fi.unit = cal.getUnit();
+		fi.description = "ImageJ=" + ImageJ.VERSION + "\nimages=" + nSlices
+				+ "\nslices=" + (nSlices / nFrames)
+				+ "\nframes=" + nFrames
+				+ ((nFrames > 1) ? "\nhyperstack=true" : "")
+				+ "\nunit=" + fi.unit
+				+ "\nspacing=" + fi.pixelDepth + "\n"
+				+ display;
+		if (nSlices > 1)
+			fi.virtualStack = stream;
+		else
+			fi.pixels = stream.getPixels(1);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				new TiffEncoder(fi).write(out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			IJ.error("Difference Map", "Could not write output: " + e.getMessage());
+			return false;
+		}
+		IJ.showProgress(1.0);
+		return true;
+	}
+
+	static double[] logTable(ImagePlus imp1, ImagePlus imp2) {
+		boolean bytes = (imp1.getType() == ImagePlus.GRAY8) && (imp2.getType() == ImagePlus.GRAY8);
+		double[] logTable = new double[bytes ? 256 : 65536];
+		for (int v = 0; v < logTable.length; ++v)
+			logTable[v] = Math.log(v + 1);
+		return logTable;
+	}
+
+	/**
+	 * Per-slice fit logY = m * logX + b over the pixels that are not
+	 * saturated in either image, and the largest value in image 1.
+	 */
+	static class SliceFit {
+		final double m, b;
+		final int max1;
+
+		SliceFit(Object pixels1, int width1, Object pixels2, int width2,
+				int width, int height, double[] logTable, int[] row1, int[] row2) {
+			double xSum = 0;
+			double ySum = 0;
+			double xySum = 0;
+			double xSqSum = 0;
+			int n = 0;
+			int max1 = 0;
+			for (int y = 0; y < height; ++y) {
+				getRow(pixels1, y * width1, row1);
+				getRow(pixels2, y * width2, row2);
+				for (int x = 0; x < width; ++x) {
+					int val1 = row1[x];
+					int val2 = row2[x];
+					if (val1 > max1) max1 = val1;
+					if ((val1 == 255) || (val1 == 4095)) continue;
+					if ((val2 == 255) || (val2 == 4095)) continue;
+					double logVal1 = logTable[val1];
+					double logVal2 = logTable[val2];
+					xSum += logVal1;
+					ySum += logVal2;
+					xySum += logVal1 * logVal2;
+					xSqSum += logVal1 * logVal1;
+					n++;
+				}
+			}
+			m = (n*xySum - xSum*ySum) / (n*xSqSum - xSum*xSum);
+			b = (ySum - m*xSum) / n;
+			this.max1 = max1;
+		}
+
+		// exp(m log(v + 1) + b) - 1 for every value v in image 1
+		double[] scaledValues(double[] logTable) {
+			double[] scaled = new double[max1 + 1];
+			for (int v = 0; v <= max1; ++v)
+				scaled[v] = Math.exp(m * logTable[v] + b) - 1;
+			return scaled;
+		}
+	}
+
+	/**
+	 * Colour coded difference slices computed when asked for, for
+	 * TiffEncoder to write without holding the stack. Rows of a slice are
+	 * shared between threads; only the most recent slice is kept.
+	 */
+	static class DifferenceStream extends VirtualStack {
+		final ImageStack stack1, stack2;
+		final int[] indices1, indices2;
+		final int width1, width2;
+		final SliceFit[] fits;
+		final double[] logTable;
+		final double scale;
+		final String format;
+		final int nSlices;
+		int currentSlice = 0;
+		ImageProcessor currentProcessor;
+
+		DifferenceStream(ImageStack stack1, int[] indices1, int width1, ImageStack stack2, int[] indices2, int width2,
+				int width, int height, SliceFit[] fits, double[] logTable, double scale, String format) {
+			super(width, height, null, null);
+			this.stack1 = stack1;
+			this.indices1 = indices1;
+			this.width1 = width1;
+			this.stack2 = stack2;
+			this.indices2 = indices2;
+			this.width2 = width2;
+			this.fits = fits;
+			this.logTable = logTable;
+			this.scale = scale;
+			this.format = format;
+			nSlices = indices1.length - 1;
+		}
+
+		public int getSize() {
+			return nSlices;
+		}
+
+		public String getSliceLabel(int n) {
+			return null;
+		}
+
+		public synchronized ImageProcessor getProcessor(int n) {
+			if (n == currentSlice)
+				return currentProcessor;
+			final int width = getWidth();
+			final int height = getHeight();
+			final Object pixels1 = stack1.getPixels(indices1[n]);
+			final Object pixels2 = stack2.getPixels(indices2[n]);
+			final double[] scaled = fits[n].scaledValues(logTable);
+			final int[] rgb = format.equals(OUTPUTS[0]) ? new int[width * height] : null;
+			final float[] diffs = (rgb == null) ? new float[width * height] : null;
+			final AtomicInteger nextRow = new AtomicInteger(0);
+			Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+			for (int t = 0; t < threads.length; ++t) {
+				threads[t] = new Thread() {
+					public void run() {
+						int[] row1 = new int[width];
+						int[] row2 = new int[width];
+						for (int y = nextRow.getAndIncrement(); y < height; y = nextRow.getAndIncrement()) {
+							getRow(pixels1, y * width1, row1);
+							getRow(pixels2, y * width2, row2);
+							for (int x = 0; x < width; ++x) {
+								float diff = (float)(scaled[row1[x]] - row2[x]);
+								if (rgb != null)
+									rgb[y * width + x] = toRGB((int)Math.round(diff * scale));
+								else
+									diffs[y * width + x] = diff;
+							}
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+			IJ.showProgress(nSlices + n, nSlices * 2);
+			currentSlice = n;
+			if (rgb != null)
+				currentProcessor = new ColorProcessor(width, height, rgb);
+			else if (format.equals(OUTPUTS[1]))
+				currentProcessor = new FloatProcessor(width, height, diffs);
+			else {
+				short[] pixels = new short[width * height];
+				storeDifference(diffs, pixels);
+				currentProcessor = new ShortProcessor(width, height, pixels, null);
+			}
+			return currentProcessor;
+		}
+	}
+
+	/**
+	 * Unscaled per-slice differences between the fit and scan pass and
+	 * the output pass, held as float to keep 4 bytes per voxel. A scaled
+	 * difference within float rounding of a .5 boundary can come out one
+	 * grey level away from what rounding it in double would give. Kept in
+	 * memory when they fit comfortably, otherwise spilled to a temporary
+	 * file that is deleted on close.
+	 */
+	static class DiffBuffer {
+		final int sliceSize;
+		final float[][] slices;
+		final File file;
+		final FileChannel channel;
+
+		// Whether buffers totalling this many bytes should go to disk
+		static boolean shouldSpill(long bytes) {
+			long available = IJ.maxMemory() - IJ.currentMemory();
+			return (IJ.maxMemory() != 0) && (bytes >= available / 2);
+		}
+
+		DiffBuffer(int sliceSize, int nSlices, boolean spill) throws IOException {
+			this.sliceSize = sliceSize;
+			if (!spill) {
+				slices = new float[nSlices + 1][];
+				file = null;
+				channel = null;
+			}
+			else {
+				slices = null;
+				file = File.createTempFile("Difference_Map", ".raw");
+				file.deleteOnExit();
+				channel = new RandomAccessFile(file, "rw").getChannel();
+			}
+		}
+
+		void put(int slice, float[] diff) throws IOException {
+			if (slices != null) {
+				slices[slice] = diff.clone();
+				return;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(4 * sliceSize).order(ByteOrder.nativeOrder());
+			buffer.asFloatBuffer().put(diff, 0, sliceSize);
+			long position = 4L * sliceSize * (slice - 1);
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		}
+
+		void get(int slice, float[] diff) throws IOException {
+			if (slices != null) {
+				System.arraycopy(slices[slice], 0, diff, 0, sliceSize);
+				slices[slice] = null;
+				return;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(4 * sliceSize).order(ByteOrder.nativeOrder());
+			long position = 4L * sliceSize * (slice - 1);
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					throw new IOException("Unexpected end of " + file);
+				position += read;
+			}
+			buffer.flip();
+			buffer.asFloatBuffer().get(diff, 0, sliceSize);
+		}
+
+		void close() {
+			if (channel == null)
+				return;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing left to lose
+			}
+			file.delete();
+		}
+	}
+
+	// Copy one row of an 8 or 16 bit pixel array, starting at offset
+	static void getRow(Object pixels, int offset, int[] row) {
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int x = 0; x < row.length; ++x)
+				row[x] = p[offset + x] & 0xff;
+		}
+		else {
+			short[] p = (short[])pixels;
+			for (int x = 0; x < row.length; ++x)
+				row[x] = p[offset + x] & 0xffff;
+		}
+	}
+
+	// Magenta for positive values, green for negative values
+	static int toRGB(int diff) {
+		if (diff < 0)
+			return Math.min(-diff, 255) << 8;
+		diff = Math.min(diff, 255);
+		return (diff << 16) | diff;
+	}
 }
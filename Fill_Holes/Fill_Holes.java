@@ -3,16 +3,64 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
+import ij.measure.Calibration;
+import ij.util.ThreadUtil;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Fill_Holes implements PlugInFilter {
+	static final String[] METHODS = {"Scan lines", "Nearest (2D)", "Nearest (3D)"};
+	static String methodOption = METHODS[0];
+	static boolean blendOption = false;
+	static boolean parallelOption = true;
+	static final String[] HOLES = {"All zero pixels", "Enclosed (face connected)", "Enclosed (fully connected)"};
+	static String holesOption = HOLES[0];
+	static int maxHoleSizeOption = 0;
+
 	ImagePlus imp;
 
 	public int setup(String arg, ImagePlus imp) {
 		this.imp = imp;
+		if ((imp != null) && !showDialog())
+			return DONE;
 		return DOES_ALL;
 	}
 
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Fill Holes");
+		gd.addChoice("Method:", METHODS, methodOption);
+		gd.addCheckbox("Blend nearest values of neighbours", blendOption);
+		gd.addCheckbox("Scan lines: fill slices in parallel", parallelOption);
+		gd.addChoice("Fill:", HOLES, holesOption);
+		gd.addNumericField("Largest hole (pixels, 0 = any):", maxHoleSizeOption, 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		methodOption = gd.getNextChoice();
+		blendOption = gd.getNextBoolean();
+		parallelOption = gd.getNextBoolean();
+		holesOption = gd.getNextChoice();
+		maxHoleSizeOption = Math.max(0, (int)gd.getNextNumber());
+		return true;
+	}
+
 	public void run(ImageProcessor ip) {
+		if (!methodOption.equals(METHODS[0])) {
+			fillNearest(methodOption.equals(METHODS[2]), blendOption);
+			return;
+		}
+		if (!holesOption.equals(HOLES[0])) {
+			// Only the pixel array path knows about hole masks
+			SliceWindows windows = new SliceWindows(imp.getStack());
+			windows.holes = sliceHoles(imp.getStack());
+			windows.fill();
+			return;
+		}
+		if (parallelOption) {
+			new SliceWindows(imp.getStack()).fill();
+			return;
+		}
 		ImageStack stack = imp.getStack();
 		// Keep three slices in memory at one time
 		ImageProcessor previousSlice = null;
@@ -103,4 +151,712 @@ public class Fill_Holes implements PlugInFilter {
 		return result;
 	}
 
+	/**
+	 * The scan line fill over slice windows processed in parallel, on the
+	 * pixel arrays. Each window reads the unfilled previous, current and
+	 * next slices and writes the filled slice into a pooled buffer, which
+	 * is copied back only once both neighbouring windows are done, so no
+	 * window ever sees a filled neighbour whatever the order. Windows are
+	 * handed out in stack order, so at most about three buffers per thread
+	 * are ever waiting; row buffers are per thread.
+	 */
+	static class SliceWindows {
+		final ImageStack stack;
+		final int w, h, n;
+		final ArrayDeque<Object> pool = new ArrayDeque<Object>();
+		final Object[] filled; // buffers waiting to be copied back
+		final boolean[] done;
+		byte[][] holes; // pixels to fill in each slice, or null for every zero pixel
+
+		SliceWindows(ImageStack stack) {
+			this.stack = stack;
+			w = stack.getWidth();
+			h = stack.getHeight();
+			n = stack.getSize();
+			filled = new Object[n + 2];
+			done = new boolean[n + 2];
+			done[0] = done[n + 1] = true; // missing neighbours of the end slices
+		}
+
+		void fill() {
+			final AtomicInteger nextSlice = new AtomicInteger(1);
+			final AtomicInteger finished = new AtomicInteger(0);
+			Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), n));
+			for (int t = 0; t < threads.length; ++t) {
+				threads[t] = new Thread() {
+					public void run() {
+						int[] offset = new int[w]; // offset to closest non-zero pixel in scan line
+						int[] source = new int[w]; // pixel in scan line to copy from
+						boolean[] zero = new boolean[w];
+						for (int i = nextSlice.getAndIncrement(); i <= n; i = nextSlice.getAndIncrement()) {
+							Object previous = (i > 1) ? stack.getPixels(i - 1) : null;
+							Object current = stack.getPixels(i);
+							Object next = (i < n) ? stack.getPixels(i + 1) : null;
+							Object out = null;
+							byte[] hole = null;
+							if (holes != null)
+								hole = holes[i - 1];
+							if ((holes == null) || (hole != null)) {
+								out = takeBuffer(current);
+								fillOneSlice(previous, current, next, out, hole, w, h, offset, source, zero);
+							}
+							finish(i, out);
+							IJ.showProgress(finished.incrementAndGet(), n);
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+
+		synchronized Object takeBuffer(Object like) {
+			Object buffer = pool.poll();
+			if (buffer == null) {
+				if (like instanceof byte[]) buffer = new byte[w * h];
+				else if (like instanceof short[]) buffer = new short[w * h];
+				else if (like instanceof float[]) buffer = new float[w * h];
+				else buffer = new int[w * h];
+			}
+			return buffer;
+		}
+
+		// Copy back every finished slice whose neighbours are finished too
+		synchronized void finish(int i, Object out) {
+			filled[i] = out;
+			done[i] = true;
+			for (int j = Math.max(1, i - 1); j <= Math.min(n, i + 1); ++j) {
+				if ((filled[j] != null) && done[j - 1] && done[j + 1]) {
+					System.arraycopy(filled[j], 0, stack.getPixels(j), 0, w * h);
+					pool.push(filled[j]);
+					filled[j] = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same three passes over each scan line as
+	 * fillOneSlice(ImageProcessor, ...), on a pixel array: the passes
+	 * work out which pixel of the line each zero pixel copies, and out
+	 * gets the current slice with those copies made. The neighbouring
+	 * slices are passed along for the same reason as there. If hole is
+	 * not null, only the zero pixels marked in it are filled.
+	 */
+	static void fillOneSlice(Object previousSlice, Object currentSlice, Object nextSlice, Object out,
+			byte[] hole, int w, int h, int[] offset, int[] source, boolean[] zero)
+	{
+		System.arraycopy(currentSlice, 0, out, 0, w * h);
+		for (int i = 0; i < h; i++) {
+			int row = i * w;
+			// PASS 1
+			// store offset to closest non-zero pixel in scan line
+			if (!zeroMask(currentSlice, row, zero))
+				continue;
+			if ((hole != null) && !maskRow(hole, row, zero))
+				continue;
+			int currentOffset = -w;
+			for (int j = 0; j < w; j++) {
+				source[j] = j;
+				if (zero[j])
+					currentOffset -= 1;
+				else
+					currentOffset = 0;
+				offset[j] = currentOffset;
+			}
+			// PASS 2
+			// right to left, where the non-zero pixel to the right is closer
+			currentOffset = w;
+			for (int j = w - 1; j >= 0; j--) {
+				if (offset[j] == 0) {
+					currentOffset = 0;
+					continue;
+				}
+				currentOffset += 1;
+				if (currentOffset >= -offset[j])
+					continue;
+				offset[j] = currentOffset;
+				if (j >= w-1)
+					continue;
+				source[j] = source[j+1];
+			}
+			// PASS 3
+			// left to right, where the non-zero pixel to the left is closer
+			for (int j = 0; j < w; j++) {
+				if (offset[j] >= 0)
+					continue;
+				if (j <= 1)
+					continue;
+				source[j] = source[j-1];
+			}
+			copyRow(currentSlice, out, row, source);
+		}
+	}
+
+	// Mark the zero pixels of one row; false if there are none
+	static boolean zeroMask(Object pixels, int row, boolean[] zero) {
+		boolean hasZeros = false;
+		int w = zero.length;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int j = 0; j < w; j++)
+				hasZeros |= zero[j] = (p[row + j] == 0);
+		}
+		else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int j = 0; j < w; j++)
+				hasZeros |= zero[j] = (p[row + j] == 0);
+		}
+		else if (pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			for (int j = 0; j < w; j++)
+				hasZeros |= zero[j] = (p[row + j] == 0);
+		}
+		else {
+			int[] p = (int[])pixels;
+			for (int j = 0; j < w; j++)
+				hasZeros |= zero[j] = ((p[row + j] & 0xffffff) == 0);
+		}
+		return hasZeros;
+	}
+
+	// Keep only the zero pixels marked in hole; false if none are left
+	static boolean maskRow(byte[] hole, int row, boolean[] zero) {
+		boolean hasZeros = false;
+		for (int j = 0; j < zero.length; j++)
+			hasZeros |= zero[j] &= (hole[row + j] != 0);
+		return hasZeros;
+	}
+
+	static void copyRow(Object in, Object out, int row, int[] source) {
+		int w = source.length;
+		if (in instanceof byte[]) {
+			byte[] p = (byte[])in, q = (byte[])out;
+			for (int j = 0; j < w; j++)
+				q[row + j] = p[row + source[j]];
+		}
+		else if (in instanceof short[]) {
+			short[] p = (short[])in, q = (short[])out;
+			for (int j = 0; j < w; j++)
+				q[row + j] = p[row + source[j]];
+		}
+		else if (in instanceof float[]) {
+			float[] p = (float[])in, q = (float[])out;
+			for (int j = 0; j < w; j++)
+				q[row + j] = p[row + source[j]];
+		}
+		else {
+			int[] p = (int[])in, q = (int[])out;
+			for (int j = 0; j < w; j++)
+				q[row + j] = p[row + source[j]];
+		}
+	}
+
+	// Fill every zero voxel from its nearest non-zero voxel, slice by
+	// slice or through the Z series of each channel and frame.
+	void fillNearest(boolean threeD, boolean blend) {
+		ImageStack stack = imp.getStack();
+		Calibration cal = imp.getCalibration();
+		int nZ = threeD ? imp.getNSlices() : 1;
+		int nVolumes = stack.getSize() / nZ;
+		for (int c = 1; c <= imp.getNChannels(); ++c) {
+			for (int t = 1; t <= imp.getNFrames(); ++t) {
+				for (int z = 1; z <= imp.getNSlices(); z += nZ) {
+					Object[] slices = new Object[nZ];
+					for (int i = 0; i < nZ; ++i)
+						slices[i] = stack.getPixels(imp.getStackIndex(c, z + i, t));
+					NearestFill nearest = new NearestFill(slices, imp.getWidth(), imp.getHeight(),
+							cal.pixelWidth, cal.pixelHeight, cal.pixelDepth, blend);
+					if (!holesOption.equals(HOLES[0]))
+						nearest.holes = HoleMask.find(slices, imp.getWidth(), imp.getHeight(),
+								holesOption.equals(HOLES[2]), maxHoleSizeOption);
+					nearest.fill();
+					int done = ((c - 1) * imp.getNFrames() + (t - 1)) * (imp.getNSlices() / nZ) + (z - 1) / nZ + 1;
+					IJ.showProgress(done, nVolumes);
+				}
+			}
+		}
+	}
+
+	// Enclosed holes of every slice on its own, slices shared between threads
+	static byte[][] sliceHoles(final ImageStack stack) {
+		final int n = stack.getSize();
+		final byte[][] holes = new byte[n][];
+		final AtomicInteger nextSlice = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), n));
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = nextSlice.getAndIncrement(); i < n; i = nextSlice.getAndIncrement())
+						holes[i] = HoleMask.find(new Object[] {stack.getPixels(i + 1)}, stack.getWidth(), stack.getHeight(),
+								holesOption.equals(HOLES[2]), maxHoleSizeOption)[0];
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		return holes;
+	}
+
+	/**
+	 * Zero regions that do not touch the border of the slice or volume,
+	 * found by two raster scans with union-find. The first scan gives each
+	 * zero pixel the label of an already scanned neighbour (or a new one),
+	 * merges the labels of all its scanned neighbours, and counts the size
+	 * and border contact of each merged region. The second scan repeats
+	 * the labelling, which gives the same labels, and marks the pixels of
+	 * enclosed regions no larger than maxSize. Only the labels of the
+	 * current and previous slice are held. Connectivity is 4 or 8 in a
+	 * slice, and 6 or 26 in a volume.
+	 */
+	static class HoleMask {
+		final Object[] slices;
+		final int w, h, d;
+		final boolean full;
+		int[] parent = new int[1024];
+		long[] size = new long[1024];
+		boolean[] border = new boolean[1024];
+		int nLabels = 1; // 0 is not a label
+
+		HoleMask(Object[] slices, int w, int h, boolean full) {
+			this.slices = slices;
+			this.w = w;
+			this.h = h;
+			d = slices.length;
+			this.full = full;
+		}
+
+		// Pixels to fill for each slice, null for a slice with none
+		static byte[][] find(Object[] slices, int w, int h, boolean full, long maxSize) {
+			HoleMask mask = new HoleMask(slices, w, h, full);
+			mask.scan(null, 0);
+			return mask.scan(new byte[slices.length][], maxSize);
+		}
+
+		// First scan if holes is null, otherwise the second scan
+		byte[][] scan(byte[][] holes, long maxSize) {
+			int[] previous = new int[w * h];
+			int[] current = new int[w * h];
+			boolean[] zero = new boolean[w];
+			int[] labels = new int[13];
+			int nextLabel = 1;
+			for (int z = 0; z < d; ++z) {
+				for (int y = 0; y < h; ++y) {
+					int row = y * w;
+					zeroMask(slices[z], row, zero);
+					for (int x = 0; x < w; ++x) {
+						int i = row + x;
+						if (!zero[x]) {
+							current[i] = 0;
+							continue;
+						}
+						// Labels of the neighbours scanned already
+						int n = 0;
+						if (x > 0) labels[n++] = current[i - 1];
+						if (y > 0) {
+							labels[n++] = current[i - w];
+							if (full) {
+								if (x > 0) labels[n++] = current[i - w - 1];
+								if (x < w - 1) labels[n++] = current[i - w + 1];
+							}
+						}
+						if (z > 0) {
+							if (full) {
+								for (int dy = -1; dy <= 1; ++dy) {
+									if ((y + dy < 0) || (y + dy >= h)) continue;
+									for (int dx = -1; dx <= 1; ++dx) {
+										if ((x + dx < 0) || (x + dx >= w)) continue;
+										labels[n++] = previous[i + dy * w + dx];
+									}
+								}
+							}
+							else
+								labels[n++] = previous[i];
+						}
+						int label = 0;
+						for (int k = 0; k < n; ++k) {
+							if (labels[k] != 0) {
+								label = labels[k];
+								break;
+							}
+						}
+						if (label == 0)
+							label = nextLabel++;
+						current[i] = label;
+						if (holes == null) {
+							if (label == nLabels)
+								addLabel();
+							int root = find(label);
+							for (int k = 0; k < n; ++k)
+								if (labels[k] != 0)
+									root = union(root, find(labels[k]));
+							++size[root];
+							if ((x == 0) || (y == 0) || (x == w - 1) || (y == h - 1)
+									|| ((d > 1) && ((z == 0) || (z == d - 1))))
+								border[root] = true;
+						}
+						else {
+							int root = find(label);
+							if (!border[root] && ((maxSize <= 0) || (size[root] <= maxSize))) {
+								if (holes[z] == null)
+									holes[z] = new byte[w * h];
+								holes[z][i] = 1;
+							}
+						}
+					}
+				}
+				int[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+			return holes;
+		}
+
+		void addLabel() {
+			if (nLabels == parent.length) {
+				parent = Arrays.copyOf(parent, 2 * nLabels);
+				size = Arrays.copyOf(size, 2 * nLabels);
+				border = Arrays.copyOf(border, 2 * nLabels);
+			}
+			parent[nLabels] = nLabels;
+			++nLabels;
+		}
+
+		int find(int label) {
+			while (parent[label] != label) {
+				parent[label] = parent[parent[label]]; // path halving
+				label = parent[label];
+			}
+			return label;
+		}
+
+		// Merge two roots, keeping the smaller label; returns the new root
+		int union(int a, int b) {
+			if (a == b)
+				return a;
+			if (b < a) {
+				int swap = a;
+				a = b;
+				b = swap;
+			}
+			parent[b] = a;
+			size[a] += size[b];
+			border[a] |= border[b];
+			return a;
+		}
+	}
+
+	/**
+	 * Nearest non-zero voxel of every voxel of a slice or volume, from a
+	 * separable Euclidean distance transform (Felzenszwalb and
+	 * Huttenlocher) that also tracks which voxel each distance is to.
+	 * Each pass runs the 1D transform along one axis, with the calibrated
+	 * voxel spacing of that axis, over lines shared between threads. Zero
+	 * voxels then take the value of their nearest non-zero voxel, or with
+	 * blend an average of the nearest values of the voxel and its face
+	 * neighbours, weighted by inverse squared distance from the voxel.
+	 *
+	 * Besides the pixels this holds an int index per voxel, 4 bytes (and
+	 * a short slice number when blending in 3D, 6 bytes), so a volume of
+	 * 8-bit pixels needs five to seven times its own size. Distances are
+	 * not kept between passes: the squared distance to a voxel's nearest
+	 * voxel so far is worked out again from the index.
+	 */
+	static class NearestFill {
+		final Object[] slices;
+		final int w, h, d;
+		final float wx, wy, wz; // squared voxel spacing
+		final boolean blend;
+		final int[][] nearest; // index in slice of nearest non-zero voxel, or -1
+		short[][] nearestSlice; // its slice, when blending in 3D
+		byte[][] holes; // voxels to fill in each slice, or null for every zero voxel
+
+		NearestFill(Object[] slices, int w, int h, double sx, double sy, double sz, boolean blend) {
+			this.slices = slices;
+			this.w = w;
+			this.h = h;
+			d = slices.length;
+			wx = (float)(sx * sx);
+			wy = (float)(sy * sy);
+			wz = (float)(sz * sz);
+			this.blend = blend && !(slices[0] instanceof int[]);
+			nearest = new int[d][w * h];
+			if (this.blend && (d > 1))
+				nearestSlice = new short[d][w * h];
+		}
+
+		// Squared distances, in the same float operations as the passes
+		// that found them, from pixel i of column x to its nearest pixel fi
+		// in the row, and to its nearest pixel fi in the slice
+		float rowDistance(int x, int fi) {
+			float dx = x - fi % w;
+			return wx * dx * dx;
+		}
+
+		float sliceDistance(int i, int fi) {
+			float dy = i / w - fi / w;
+			return wy * dy * dy + rowDistance(i % w, fi);
+		}
+
+		// Whether voxel i of slice z is its own nearest non-zero voxel
+		boolean isFeature(int z, int i) {
+			if (nearest[z][i] != i)
+				return false;
+			return (nearestSlice == null) || ((nearestSlice[z][i] & 0xffff) == z);
+		}
+
+		boolean isHole(int z, int i) {
+			return (holes == null) || ((holes[z] != null) && (holes[z][i] != 0));
+		}
+
+		void fill() {
+			if (holes != null) {
+				boolean any = false;
+				for (byte[] hole : holes)
+					any |= (hole != null);
+				if (!any)
+					return; // nothing enclosed
+			}
+			// Along x: lines are rows of every slice
+			forEachLine(d * h, new LineTask() {
+				public void run(int line, Scratch s) {
+					int z = line / h;
+					int offset = (line % h) * w;
+					Object pixels = slices[z];
+					for (int x = 0; x < w; ++x)
+						s.f[x] = isZero(pixels, offset + x) ? Float.POSITIVE_INFINITY : 0;
+					distanceTransform1D(s.f, w, wx, s.dist, s.arg, s.v, s.bounds);
+					for (int x = 0; x < w; ++x)
+						nearest[z][offset + x] = (s.arg[x] < 0) ? -1 : offset + s.arg[x];
+				}
+			});
+			// Along y: lines are columns of every slice
+			forEachLine(d * w, new LineTask() {
+				public void run(int line, Scratch s) {
+					int z = line / w;
+					int x = line % w;
+					for (int y = 0; y < h; ++y) {
+						int fi = nearest[z][y * w + x];
+						s.f[y] = (fi < 0) ? Float.POSITIVE_INFINITY : rowDistance(x, fi);
+						s.index[y] = fi;
+					}
+					distanceTransform1D(s.f, h, wy, s.dist, s.arg, s.v, s.bounds);
+					for (int y = 0; y < h; ++y)
+						nearest[z][y * w + x] = (s.arg[y] < 0) ? -1 : s.index[s.arg[y]];
+				}
+			});
+			if (d == 1) {
+				if (blend)
+					blendSlices();
+				else
+					copySlices();
+				return;
+			}
+			// Along z: lines are the voxels of one x, y through all slices
+			forEachLine(w * h, new LineTask() {
+				public void run(int i, Scratch s) {
+					for (int z = 0; z < d; ++z) {
+						int fi = nearest[z][i];
+						s.f[z] = (fi < 0) ? Float.POSITIVE_INFINITY : sliceDistance(i, fi);
+						s.index[z] = fi;
+					}
+					distanceTransform1D(s.f, d, wz, s.dist, s.arg, s.v, s.bounds);
+					for (int z = 0; z < d; ++z) {
+						int fz = s.arg[z];
+						int fi = (fz < 0) ? -1 : s.index[fz];
+						nearest[z][i] = fi;
+						if (fi < 0)
+							continue;
+						if (nearestSlice != null)
+							nearestSlice[z][i] = (short)fz;
+						else if (!isHole(z, i))
+							continue;
+						else if (fz != z)
+							copyValue(slices[fz], fi, slices[z], i);
+						else if (fi != i)
+							copyValue(slices[z], fi, slices[z], i);
+					}
+				}
+			});
+			if (blend)
+				blendSlices();
+		}
+
+		// Nearest value into every zero pixel of each slice
+		void copySlices() {
+			forEachLine(d * h, new LineTask() {
+				public void run(int line, Scratch s) {
+					int z = line / h;
+					int offset = (line % h) * w;
+					for (int i = offset; i < offset + w; ++i) {
+						int fi = nearest[z][i];
+						if ((fi >= 0) && (fi != i) && isHole(z, i))
+							copyValue(slices[z], fi, slices[z], i);
+					}
+				}
+			});
+		}
+
+		// Inverse squared distance weighted average of the nearest values
+		// of each zero voxel and its face neighbours. Nearest voxels are
+		// never zero, so they are read unchanged while holes are written.
+		void blendSlices() {
+			forEachLine(d * h, new LineTask() {
+				public void run(int line, Scratch s) {
+					int z = line / h;
+					int y = line % h;
+					int[] fz = new int[7];
+					int[] fi = new int[7];
+					for (int x = 0; x < w; ++x) {
+						int i = y * w + x;
+						if (isFeature(z, i) || !isHole(z, i))
+							continue; // not a hole
+						int n = 0;
+						n = addFeature(z, i, fz, fi, n);
+						if (x > 0) n = addFeature(z, i - 1, fz, fi, n);
+						if (x < w - 1) n = addFeature(z, i + 1, fz, fi, n);
+						if (y > 0) n = addFeature(z, i - w, fz, fi, n);
+						if (y < h - 1) n = addFeature(z, i + w, fz, fi, n);
+						if (z > 0) n = addFeature(z - 1, i, fz, fi, n);
+						if (z < d - 1) n = addFeature(z + 1, i, fz, fi, n);
+						if (n == 0)
+							continue; // nothing to fill from
+						double sum = 0, sumWeights = 0;
+						for (int k = 0; k < n; ++k) {
+							double dx = (fi[k] % w) - x;
+							double dy = (fi[k] / w) - y;
+							double dz = fz[k] - z;
+							double weight = 1.0 / (wx * dx * dx + wy * dy * dy + wz * dz * dz);
+							sum += weight * getValue(slices[fz[k]], fi[k]);
+							sumWeights += weight;
+						}
+						setValue(slices[z], i, sum / sumWeights);
+					}
+				}
+			});
+		}
+
+		// Add the nearest non-zero voxel of voxel i in slice z, unless
+		// it is already listed or there is none
+		int addFeature(int z, int i, int[] fz, int[] fi, int n) {
+			int index = nearest[z][i];
+			if (index < 0)
+				return n;
+			int slice = (nearestSlice == null) ? z : nearestSlice[z][i] & 0xffff;
+			for (int k = 0; k < n; ++k)
+				if ((fi[k] == index) && (fz[k] == slice))
+					return n;
+			fz[n] = slice;
+			fi[n] = index;
+			return n + 1;
+		}
+
+		// Per-thread buffers, sized for the longest line
+		class Scratch {
+			final int n = Math.max(w, Math.max(h, d));
+			final float[] f = new float[n];
+			final float[] dist = new float[n];
+			final int[] arg = new int[n];
+			final int[] index = new int[n];
+			final int[] v = new int[n];
+			final double[] bounds = new double[n + 1];
+		}
+
+		abstract class LineTask {
+			abstract void run(int line, Scratch scratch);
+		}
+
+		void forEachLine(final int nLines, final LineTask task) {
+			final AtomicInteger nextLine = new AtomicInteger(0);
+			Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+			for (int t = 0; t < threads.length; ++t) {
+				threads[t] = new Thread() {
+					public void run() {
+						Scratch scratch = new Scratch();
+						for (int line = nextLine.getAndIncrement(); line < nLines; line = nextLine.getAndIncrement())
+							task.run(line, scratch);
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+	}
+
+	/**
+	 * Squared distance transform of f along one line of n samples
+	 * spaced sqrt(weight) apart, where f is 0 at features and infinite
+	 * elsewhere (or a squared distance from an earlier pass). arg gets
+	 * the position of the parabola each sample is nearest to, or -1 if
+	 * the line has no finite values. v and z are scratch.
+	 */
+	static void distanceTransform1D(float[] f, int n, float weight, float[] d, int[] arg, int[] v, double[] z) {
+		int k = -1;
+		for (int q = 0; q < n; ++q) {
+			if (f[q] == Float.POSITIVE_INFINITY)
+				continue;
+			double s = 0;
+			while (k >= 0) {
+				s = ((f[q] + weight * (double)q * q) - (f[v[k]] + weight * (double)v[k] * v[k]))
+						/ (2.0 * weight * (q - v[k]));
+				if (s > z[k])
+					break;
+				--k;
+			}
+			++k;
+			v[k] = q;
+			z[k] = (k == 0) ? Double.NEGATIVE_INFINITY : s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+		if (k < 0) { // no features in this line
+			for (int q = 0; q < n; ++q) {
+				d[q] = Float.POSITIVE_INFINITY;
+				arg[q] = -1;
+			}
+			return;
+		}
+		k = 0;
+		for (int q = 0; q < n; ++q) {
+			while (z[k + 1] < q)
+				++k;
+			float dq = q - v[k];
+			d[q] = weight * dq * dq + f[v[k]];
+			arg[q] = v[k];
+		}
+	}
+
+	static boolean isZero(Object pixels, int i) {
+		if (pixels instanceof byte[])
+			return ((byte[])pixels)[i] == 0;
+		if (pixels instanceof short[])
+			return ((short[])pixels)[i] == 0;
+		if (pixels instanceof float[])
+			return ((float[])pixels)[i] == 0;
+		return (((int[])pixels)[i] & 0xffffff) == 0;
+	}
+
+	static void copyValue(Object from, int i, Object to, int j) {
+		if (from instanceof byte[])
+			((byte[])to)[j] = ((byte[])from)[i];
+		else if (from instanceof short[])
+			((short[])to)[j] = ((short[])from)[i];
+		else if (from instanceof float[])
+			((float[])to)[j] = ((float[])from)[i];
+		else
+			((int[])to)[j] = ((int[])from)[i];
+	}
+
+	static double getValue(Object pixels, int i) {
+		if (pixels instanceof byte[])
+			return ((byte[])pixels)[i] & 0xff;
+		if (pixels instanceof short[])
+			return ((short[])pixels)[i] & 0xffff;
+		return ((float[])pixels)[i];
+	}
+
+	static void setValue(Object pixels, int i, double value) {
+		if (pixels instanceof byte[])
+			((byte[])pixels)[i] = (byte)Math.max(0, Math.min(255, Math.round(value)));
+		else if (pixels instanceof short[])
+			((short[])pixels)[i] = (short)Math.max(0, Math.min(65535, Math.round(value)));
+		else
+			((float[])pixels)[i] = (float)value;
+	}
 }
@@ -2,12 +2,29 @@ import ij.*;
 import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
+import java.awt.image.ColorModel;
 import ij.plugin.*;
 import ij.plugin.frame.*;
 import ij.io.*;
+import ij.measure.Calibration;
+import ij.util.ThreadUtil;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 public class Read_Oriented_Tiff implements PlugIn {
+	// TIFF Orientation tag value of the file being opened, 1 if absent
+	int orientation = 1;
+	// map uncompressed files into memory rather than reading them
+	static boolean mapOption = true;
+	// decode compressed files in parallel, into memory when they fit
+	static boolean decodeOption = true;
 
 	public void run(String arg) 
 	{
@@ -21,7 +38,6 @@ public class Read_Oriented_Tiff implements PlugIn {
 		IJ.showStatus("Opening: " + dir + name);
 		try {
 			FileInfo[] fi =  getFileInfo(dir, name);
-			IJ.showMessage(fi[0].info);
 			openStacks(fi);
 		} catch (IOException e) {
 			String msg = e.getMessage();
@@ -38,6 +54,7 @@ public class Read_Oriented_Tiff implements PlugIn {
 		FileInfo[] info = td.getTiffInfo();
 		if (info==null)
 			throw new IOException("This file does not appear to be in TIFF format.");
+		orientation = td.getOrientation();
 		if (IJ.debugMode) // dump tiff tags
 			IJ.write(info[0].info);
 		return info;
@@ -45,21 +62,632 @@ public class Read_Oriented_Tiff implements PlugIn {
 
 	void openStacks(FileInfo[] fi) throws IOException 
 	{
-		int nImages = 0;
-		for (FileInfo fileInfo : fi) {
-			// IJ.showMessage("frameInterval = " + fileInfo.frameInterval);
-			IJ.showMessage("nImages = " + fileInfo.nImages);
-			if (fileInfo.nImages > 1) {
-				nImages += fileInfo.nImages;
-				break;
+		ImagePlus imp = openOriented(fi, orientation);
+		if (imp.getStackSize() > 0)
+			imp.show();
+	}
+
+	/**
+	 * Opens the images as a virtual stack seen through the orientation,
+	 * so nothing is read until a slice is shown and no reoriented copy
+	 * of the file is ever made. Channels, slices and frames are taken
+	 * from the ImageJ description when they account for every image.
+	 * With mapOption, uncompressed files are read through a MappedStack;
+	 * with decodeOption, compressed files are decoded in parallel by
+	 * OrientedTiffDecoder.readStrips, into memory when they fit and
+	 * otherwise a batch at a time through a DecodedStack.
+	 */
+	static ImagePlus openOriented(FileInfo[] fi, int orientation) throws IOException
+	{
+		FileInfo info = fi[0];
+		ImageStack source = mapOption ? MappedStack.map(fi) : null;
+		if (source == null && decodeOption)
+			source = new OrientedTiffDecoder(info.directory, info.fileName).readStrips(fi);
+		if (source == null)
+			source = fi.length > 1
+				? new FileInfoVirtualStack(fi)
+				: new FileInfoVirtualStack(info, false);
+		OrientedStack stack = new OrientedStack(source, orientation);
+		ImagePlus imp = new ImagePlus(info.fileName, stack);
+		Properties props = descriptionProperties(info.description);
+		int channels = getInt(props, "channels");
+		int slices = getInt(props, "slices");
+		int frames = getInt(props, "frames");
+		if (channels * slices * frames == stack.getSize()) {
+			imp.setDimensions(channels, slices, frames);
+			if (channels > 1 || frames > 1)
+				imp.setOpenAsHyperStack(true);
+		}
+		Calibration cal = imp.getCalibration();
+		boolean swap = stack.transposed();
+		if (info.pixelWidth > 0 && info.pixelHeight > 0) {
+			cal.pixelWidth = swap ? info.pixelHeight : info.pixelWidth;
+			cal.pixelHeight = swap ? info.pixelWidth : info.pixelHeight;
+			cal.pixelDepth = info.pixelDepth;
+			if (info.unit != null)
+				cal.setUnit(info.unit);
+		}
+		if (info.frameInterval > 0)
+			cal.frameInterval = info.frameInterval;
+		if (info.fileType == FileInfo.GRAY16_SIGNED)
+			cal.setSigned16BitCalibration();
+		return imp;
+	}
+
+	// An inverted grayscale LUT for images stored with white as zero, as
+	// FileOpener gives them, or null
+	static ColorModel colorModel(FileInfo info)
+	{
+		return info.whiteIsZero ? LookUpTable.createGrayscaleColorModel(true) : null;
+	}
+
+	static Properties descriptionProperties(String description)
+	{
+		Properties props = new Properties();
+		if (description != null && description.startsWith("ImageJ")) {
+			try {
+				props.load(new ByteArrayInputStream(description.getBytes("ISO-8859-1")));
+			} catch (IOException e) {}
+		}
+		return props;
+	}
+
+	static int getInt(Properties props, String key)
+	{
+		try {
+			return Math.max(1, Integer.parseInt(props.getProperty(key, "1").trim()));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * A virtual stack that shows the slices of another one flipped,
+	 * rotated or transposed as the TIFF Orientation tag (1 to 8) says,
+	 * remapping each slice as it is read. 1 passes slices through.
+	 * Slices of a stack held in memory are copied before being flipped.
+	 */
+	static class OrientedStack extends VirtualStack {
+		final ImageStack source;
+		final int orientation;
+
+		OrientedStack(ImageStack source, int orientation) {
+			super(transposed(orientation) ? source.getHeight() : source.getWidth(),
+				transposed(orientation) ? source.getWidth() : source.getHeight());
+			this.source = source;
+			this.orientation = orientation >= 1 && orientation <= 8 ? orientation : 1;
+		}
+
+		// 5 to 8 store columns as rows
+		static boolean transposed(int orientation) {
+			return orientation >= 5 && orientation <= 8;
+		}
+
+		boolean transposed() {
+			return transposed(orientation);
+		}
+
+		public ImageProcessor getProcessor(int n) {
+			ImageProcessor ip = source.getProcessor(n);
+			if (!source.isVirtual() && orientation >= 2 && orientation <= 4)
+				ip = ip.duplicate(); // the flips work in place
+			switch (orientation) {
+				case 2: ip.flipHorizontal(); break;
+				case 3: ip.flipHorizontal(); ip.flipVertical(); break;
+				case 4: ip.flipVertical(); break;
+				case 5: ip = ip.rotateRight(); ip.flipHorizontal(); break;
+				case 6: ip = ip.rotateRight(); break;
+				case 7: ip = ip.rotateRight(); ip.flipVertical(); break;
+				case 8: ip = ip.rotateLeft(); break;
 			}
-			nImages ++;
+			return ip;
+		}
+
+		public int getSize() {
+			return source.getSize();
+		}
+
+		public int size() {
+			return source.size();
+		}
+
+		public String getSliceLabel(int n) {
+			return source.getSliceLabel(n);
+		}
+
+		public void deleteSlice(int n) {
+			source.deleteSlice(n);
+		}
+
+		public int getBitDepth() {
+			return source.getBitDepth();
+		}
+
+		public String getDirectory() {
+			return source instanceof VirtualStack ? ((VirtualStack)source).getDirectory() : null;
+		}
+
+		public String getFileName(int n) {
+			return source instanceof VirtualStack ? ((VirtualStack)source).getFileName(n) : null;
 		}
 	}
 
-	class OrientedTiffDecoder extends TiffDecoder {
+	/**
+	 * A virtual stack over a memory mapped, uncompressed TIFF. Opening
+	 * it only maps the file; a slice's pixels are copied out of the
+	 * mapping when the slice is asked for, and the OS page cache decides
+	 * what stays in memory. A mapping can be at most 2 GB, so larger
+	 * files are mapped as several regions, each holding whole slices.
+	 * Files stored with white as zero keep their pixel values and get an
+	 * inverted LUT, as FileOpener gives them.
+	 */
+	static class MappedStack extends VirtualStack {
+		static final long MAX_MAPPING = Integer.MAX_VALUE;
+		final FileInfo info;
+		final int type;
+		final ByteOrder order;
+		final ColorModel cm;
+		final MappedByteBuffer[] mappings;
+		int[] mapping; // per slice
+		int[] position; // per slice, within its mapping
+		String[] labels;
+
+		MappedStack(FileInfo info, MappedByteBuffer[] mappings, int[] mapping, int[] position, String[] labels) {
+			super(info.width, info.height);
+			this.info = info;
+			this.type = info.fileType;
+			this.order = info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			this.cm = colorModel(info);
+			this.mappings = mappings;
+			this.mapping = mapping;
+			this.position = position;
+			this.labels = labels;
+		}
+
+		/**
+		 * Maps the file if every image is uncompressed 8, 16 or 32-bit
+		 * gray with its strips stored back to back, or returns null.
+		 */
+		static MappedStack map(FileInfo[] fi) throws IOException {
+			FileInfo info = fi[0];
+			long size = (long)info.width * info.height * info.getBytesPerPixel();
+			ArrayList<Long> offsets = new ArrayList<Long>();
+			ArrayList<String> labels = new ArrayList<String>();
+			for (FileInfo f : fi) {
+				if (f.compression != FileInfo.COMPRESSION_NONE || f.fileType != info.fileType
+						|| f.width != info.width || f.height != info.height)
+					return null;
+				if (f.fileType != FileInfo.GRAY8 && f.fileType != FileInfo.GRAY16_UNSIGNED
+						&& f.fileType != FileInfo.GRAY16_SIGNED && f.fileType != FileInfo.GRAY32_FLOAT)
+					return null;
+				if (!contiguous(f, size))
+					return null;
+				for (int k = 0; k < Math.max(1, f.nImages); ++k) {
+					offsets.add(f.getOffset() + k * (size + f.getGap()));
+					labels.add(f.sliceLabels != null && k < f.sliceLabels.length ? f.sliceLabels[k] : null);
+				}
+			}
+			int n = offsets.size();
+			int[] mapping = new int[n];
+			int[] position = new int[n];
+			ArrayList<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>();
+			RandomAccessFile file = new RandomAccessFile(info.getFilePath(), "r");
+			try {
+				FileChannel channel = file.getChannel();
+				int first = 0;
+				while (first < n) {
+					// as many slices as fit in one mapping
+					long start = offsets.get(first);
+					int last = first;
+					while (last + 1 < n && offsets.get(last + 1) >= start
+							&& offsets.get(last + 1) + size - start <= MAX_MAPPING)
+						++last;
+					long end = start;
+					for (int i = first; i <= last; ++i)
+						end = Math.max(end, offsets.get(i) + size);
+					if (end > channel.size())
+						return null; // truncated file
+					for (int i = first; i <= last; ++i) {
+						mapping[i] = mappings.size();
+						position[i] = (int)(offsets.get(i) - start);
+					}
+					mappings.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+					first = last + 1;
+				}
+			} finally {
+				file.close();
+			}
+			return new MappedStack(info, mappings.toArray(new MappedByteBuffer[0]),
+				mapping, position, labels.toArray(new String[0]));
+		}
+
+		// Whether one image's strips follow each other with no gaps
+		static boolean contiguous(FileInfo f, long size) {
+			if (f.stripOffsets == null || f.stripOffsets.length <= 1)
+				return true;
+			long expected = f.stripOffsets[0] & 0xffffffffL;
+			long total = 0;
+			for (int i = 0; i < f.stripOffsets.length; ++i) {
+				if ((f.stripOffsets[i] & 0xffffffffL) != expected)
+					return false;
+				expected += f.stripLengths[i];
+				total += f.stripLengths[i];
+			}
+			return total >= size;
+		}
+
+		public ImageProcessor getProcessor(int n) {
+			ByteBuffer buffer = mappings[mapping[n-1]].duplicate();
+			buffer.position(position[n-1]);
+			buffer.order(order);
+			int w = getWidth(), h = getHeight();
+			switch (type) {
+				case FileInfo.GRAY8:
+					byte[] bytes = new byte[w * h];
+					buffer.get(bytes);
+					return new ByteProcessor(w, h, bytes, cm);
+				case FileInfo.GRAY16_UNSIGNED:
+				case FileInfo.GRAY16_SIGNED:
+					short[] shorts = new short[w * h];
+					buffer.asShortBuffer().get(shorts);
+					if (type == FileInfo.GRAY16_SIGNED)
+						for (int i = 0; i < shorts.length; ++i)
+							shorts[i] += 32768;
+					return new ShortProcessor(w, h, shorts, cm);
+				default:
+					float[] floats = new float[w * h];
+					buffer.asFloatBuffer().get(floats);
+					return new FloatProcessor(w, h, floats, cm);
+			}
+		}
+
+		public int getSize() {
+			return mapping.length;
+		}
+
+		public int size() {
+			return getSize();
+		}
+
+		public String getSliceLabel(int n) {
+			return labels[n-1];
+		}
+
+		public void deleteSlice(int n) {
+			int[] m = new int[mapping.length - 1];
+			int[] p = new int[m.length];
+			String[] l = new String[m.length];
+			for (int i = 0, j = 0; i < mapping.length; ++i) {
+				if (i == n-1)
+					continue;
+				m[j] = mapping[i];
+				p[j] = position[i];
+				l[j++] = labels[i];
+			}
+			mapping = m;
+			position = p;
+			labels = l;
+		}
+
+		public int getBitDepth() {
+			return type == FileInfo.GRAY8 ? 8 : type == FileInfo.GRAY32_FLOAT ? 32 : 16;
+		}
+
+		public String getDirectory() {
+			return info.directory;
+		}
+
+		public String getFileName(int n) {
+			return info.fileName;
+		}
+	}
+
+	/**
+	 * A virtual stack of compressed images too large to decode all at
+	 * once. Images are read and decoded a batch at a time, as readStrips
+	 * does, and the batch after the one being viewed is decoded in the
+	 * background, so paging forward rarely waits. Only those two batches
+	 * are held, each within a quarter of the free memory, and slices are
+	 * copied out of them.
+	 */
+	static class DecodedStack extends VirtualStack {
+		final FileInfo info;
+		final String path;
+		final ColorModel cm;
+		final int count; // images per batch
+		FileInfo[] fi;
+		Batch current, ahead;
+
+		DecodedStack(String path, FileInfo[] fi) {
+			super(fi[0].width, fi[0].height);
+			this.info = fi[0];
+			this.path = path;
+			this.cm = colorModel(info);
+			this.fi = fi;
+			// two batches decode to at most BATCH bytes and half the free memory
+			long size = (long)info.width * info.height * info.getBytesPerPixel();
+			long bytes = OrientedTiffDecoder.BATCH;
+			if (IJ.maxMemory() != 0)
+				bytes = Math.min(bytes, (IJ.maxMemory() - IJ.currentMemory()) / 4);
+			count = (int)Math.max(1, bytes / size);
+		}
+
+		// Images first to last, read and decoded on a thread of their own
+		class Batch extends Thread {
+			final FileInfo[] images = fi;
+			final int first, last;
+			final Object[] pixels;
+			Throwable failure;
+
+			Batch(int first) {
+				this.first = first;
+				last = OrientedTiffDecoder.lastInBatch(images, first, count);
+				pixels = new Object[last - first + 1];
+				setDaemon(true);
+				start();
+			}
+
+			public void run() {
+				try {
+					RandomAccessFile file = new RandomAccessFile(path, "r");
+					try {
+						ThreadUtil.joinAll(ThreadUtil.start(
+							OrientedTiffDecoder.readBatch(file, images, first, last, pixels, first)));
+					} finally {
+						file.close();
+					}
+				} catch (Throwable e) {
+					failure = e;
+				}
+			}
+
+			boolean holds(int i) {
+				return i >= first && i <= last;
+			}
+
+			Object pixels(int i) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while decoding image " + (i + 1), e);
+				}
+				if (failure != null || pixels[i - first] == null)
+					throw new IllegalStateException("Could not decode image " + (i + 1)
+						+ " of " + info.fileName, failure);
+				return pixels[i - first];
+			}
+		}
+
+		public synchronized ImageProcessor getProcessor(int n) {
+			if (current == null || !current.holds(n-1))
+				current = ahead != null && ahead.holds(n-1) ? ahead : new Batch(n-1);
+			int next = current.last + 1;
+			if (next < fi.length && (ahead == null || ahead.first != next))
+				ahead = new Batch(next);
+			Object pixels = current.pixels(n-1);
+			int w = getWidth(), h = getHeight();
+			if (pixels instanceof byte[])
+				return new ByteProcessor(w, h, ((byte[])pixels).clone(), cm);
+			if (pixels instanceof short[])
+				return new ShortProcessor(w, h, ((short[])pixels).clone(), cm);
+			if (pixels instanceof float[])
+				return new FloatProcessor(w, h, ((float[])pixels).clone(), cm);
+			return new ColorProcessor(w, h, ((int[])pixels).clone());
+		}
+
+		public int getSize() {
+			return fi.length;
+		}
+
+		public int size() {
+			return getSize();
+		}
+
+		public String getSliceLabel(int n) {
+			return null;
+		}
+
+		public synchronized void deleteSlice(int n) {
+			FileInfo[] f = new FileInfo[fi.length - 1];
+			for (int i = 0, j = 0; i < fi.length; ++i)
+				if (i != n-1)
+					f[j++] = fi[i];
+			fi = f;
+			current = ahead = null;
+		}
+
+		public int getBitDepth() {
+			switch (info.fileType) {
+				case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.BITMAP:
+					return 8;
+				case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED: case FileInfo.GRAY12_UNSIGNED:
+					return 16;
+				case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.BARG:
+				case FileInfo.ABGR: case FileInfo.RGB_PLANAR: case FileInfo.CMYK:
+					return 24;
+				default:
+					return 32;
+			}
+		}
+
+		public String getDirectory() {
+			return info.directory;
+		}
+
+		public String getFileName(int n) {
+			return info.fileName;
+		}
+	}
+
+	static class OrientedTiffDecoder extends TiffDecoder {
+		static final int BATCH = 64 << 20; // bytes read at a time by readStrips
+		static final long MAX_READ = Integer.MAX_VALUE - 8; // largest byte array
+		final String path;
+
 		public OrientedTiffDecoder(String directory, String name) {
 			super(directory, name);
+			path = directory + name;
+		}
+
+		/**
+		 * The Orientation tag of the first IFD, or 1 (rows top to bottom,
+		 * columns left to right) if there is none. TiffDecoder skips the
+		 * tag, so the IFD entries are read again here.
+		 */
+		public int getOrientation() throws IOException {
+			RandomAccessFile f = new RandomAccessFile(path, "r");
+			try {
+				byte[] header = new byte[8];
+				f.readFully(header);
+				boolean little = header[0] == 'I';
+				if (getShort(header, 2, little) != 42)
+					return 1; // BigTIFF is not read by TiffDecoder either
+				f.seek(getInt(header, 4, little) & 0xffffffffL);
+				byte[] count = new byte[2];
+				f.readFully(count);
+				byte[] entries = new byte[12 * getShort(count, 0, little)];
+				f.readFully(entries);
+				for (int i = 0; i < entries.length; i += 12) {
+					if (getShort(entries, i, little) == ORIENTATION)
+						return getShort(entries, i + 8, little);
+				}
+				return 1;
+			} finally {
+				f.close();
+			}
 		}
+
+		/**
+		 * Reads a compressed file, or returns null if no image is
+		 * compressed, the images are not all one strip-per-IFD size and
+		 * type with their strips in file order, or one image's strips
+		 * span more than MAX_READ bytes. Consecutive images are read
+		 * together in sequential reads of up to BATCH bytes, and each
+		 * image is handed to ImageReader on the ThreadUtil pool to
+		 * decompress, so the next batch is read while earlier ones are
+		 * decoded. At most two batches wait on decoding at once. Files
+		 * that would take more than half the free memory once decoded
+		 * are opened as a DecodedStack instead.
+		 */
+		public ImageStack readStrips(FileInfo[] fi) throws IOException {
+			FileInfo info = fi[0];
+			boolean compressed = false;
+			for (FileInfo f : fi) {
+				if (f.nImages > 1 || f.width != info.width || f.height != info.height
+						|| f.fileType != info.fileType || !ascending(f)
+						|| end(f) - start(f) > MAX_READ)
+					return null;
+				if (f.fileType == FileInfo.RGB48 || f.fileType == FileInfo.RGB48_PLANAR)
+					return null; // decoded as one array per channel
+				compressed |= f.compression != FileInfo.COMPRESSION_NONE;
+			}
+			if (!compressed)
+				return null;
+			long bytes = (long)info.width * info.height * info.getBytesPerPixel() * fi.length;
+			long available = IJ.maxMemory() - IJ.currentMemory();
+			if (IJ.maxMemory() != 0 && bytes >= available / 2)
+				return new DecodedStack(path, fi);
+			Object[] pixels = new Object[fi.length];
+			ArrayList<Future<?>[]> pending = new ArrayList<Future<?>[]>();
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				int first = 0;
+				while (first < fi.length) {
+					int last = lastInBatch(fi, first, fi.length);
+					pending.add(ThreadUtil.start(readBatch(file, fi, first, last, pixels, 0)));
+					if (pending.size() > 2)
+						ThreadUtil.joinAll(pending.remove(0));
+					IJ.showProgress(last + 1, fi.length);
+					first = last + 1;
+				}
+				for (Future<?>[] futures : pending)
+					ThreadUtil.joinAll(futures);
+			} finally {
+				file.close();
+			}
+			ImageStack stack = new ImageStack(info.width, info.height, colorModel(info));
+			for (int i = 0; i < fi.length; ++i) {
+				if (pixels[i] == null)
+					throw new IOException("Could not decode image " + (i + 1) + " of " + info.fileName);
+				stack.addSlice(null, pixels[i]);
+			}
+			return stack;
+		}
+
+		// The last of up to count images read in one batch starting at
+		// image first, which follow each other in the file within BATCH bytes
+		static int lastInBatch(FileInfo[] fi, int first, int count) {
+			long start = start(fi[first]);
+			long end = end(fi[first]);
+			int last = first;
+			while (last + 1 < fi.length && last + 1 - first < count && start(fi[last + 1]) >= end
+					&& end(fi[last + 1]) - start <= BATCH)
+				end = end(fi[++last]);
+			return last;
+		}
+
+		// Reads images first to last in one go, returning the tasks that
+		// decode image i into pixels[i - base]
+		static Callable<?>[] readBatch(RandomAccessFile file, FileInfo[] fi, int first, int last,
+				Object[] pixels, int base) throws IOException {
+			long start = start(fi[first]);
+			byte[] batch = new byte[(int)(end(fi[last]) - start)];
+			file.seek(start);
+			file.readFully(batch);
+			Callable<?>[] tasks = new Callable<?>[last - first + 1];
+			for (int i = first; i <= last; ++i)
+				tasks[i - first] = decoder(fi[i], batch, start, pixels, i - base);
+			return tasks;
+		}
+
+		// Decodes one image from the batch read at file offset start
+		static Callable<Object> decoder(FileInfo f, final byte[] batch, long start,
+				final Object[] pixels, final int i) {
+			final FileInfo local = (FileInfo)f.clone();
+			local.stripOffsets = new int[f.stripOffsets.length];
+			for (int j = 0; j < local.stripOffsets.length; ++j)
+				local.stripOffsets[j] = (int)((f.stripOffsets[j] & 0xffffffffL) - start);
+			local.offset = local.stripOffsets[0];
+			local.longOffset = 0;
+			return new Callable<Object>() {
+				public Object call() {
+					pixels[i] = new ImageReader(local).readPixels(new ByteArrayInputStream(batch));
+					return null;
+				}
+			};
+		}
+
+		static boolean ascending(FileInfo f) {
+			if (f.stripOffsets == null || f.stripLengths == null)
+				return false;
+			for (int j = 1; j < f.stripOffsets.length; ++j)
+				if ((f.stripOffsets[j] & 0xffffffffL) < (f.stripOffsets[j-1] & 0xffffffffL) + f.stripLengths[j-1])
+					return false;
+			return true;
+		}
+
+		static long start(FileInfo f) {
+			return f.stripOffsets[0] & 0xffffffffL;
+		}
+
+		static long end(FileInfo f) {
+			int last = f.stripOffsets.length - 1;
+			return (f.stripOffsets[last] & 0xffffffffL) + f.stripLengths[last];
+		}
+	}
+
+	static int getShort(byte[] b, int i, boolean little)
+	{
+		return little
+			? (b[i] & 0xff) | (b[i+1] & 0xff) << 8
+			: (b[i] & 0xff) << 8 | (b[i+1] & 0xff);
+	}
+
+	static int getInt(byte[] b, int i, boolean little)
+	{
+		return little
+			? getShort(b, i, true) | getShort(b, i + 2, true) << 16
+			: getShort(b, i, false) << 16 | getShort(b, i + 2, false);
 	}
 }
@@ -5,40 +5,104 @@
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.IJ;
+import ij.ImageJ;
+import ij.Prefs;
+import ij.VirtualStack;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.SaveDialog;
+import ij.io.TiffEncoder;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Stack_Histogram_Matcher implements PlugIn 
 {
+	static final String THIS_STACK = "[This stack]";
+	static final String[] REFERENCE_SOURCES = {"First slice", "Slice number", "Pooled frame"};
+	static String referenceOption = THIS_STACK;
+	static String referenceSourceOption = REFERENCE_SOURCES[0];
+	static int referenceSliceOption = 1;
+	static int referenceFrameOption = 1;
+	static boolean allSeriesOption = false;
+	static int floatBinsOption = 4096;
+	static final String[] OUTPUT_FORMATS = {"Multi-page TIFF", "TIFF sequence"};
+	static boolean streamOption = false;
+	static String outputOption = OUTPUT_FORMATS[0];
+	static int inFlightOption = 2 * Prefs.getThreads();
+	static boolean rebuildOption = false;
+
+	// Stack indices to process, in stack order, and the reference each
+	// one is matched against. A null reference leaves the slice unchanged.
+	int[] planIndices;
+	ReferenceCdf[] planReferences;
+	int planChannels;
+	int planFrames;
+
 	public void run(String arg) 
 	{
 		ImagePlus image = IJ.getImage();
 		int currentChannel = image.getChannel();
 		int currentFrame = image.getFrame();
+		ImagePlus referenceImage = showDialog(image);
+		if (referenceImage == null)
+			return;
+		ImageStack stack = image.getStack();
+		// Fast path for 8-bit, 16-bit and 32-bit stacks; every slice is
+		// matched against a precomputed reference, so slices are independent.
+		int bitDepth = image.getBitDepth();
+		if ((bitDepth == 8) || (bitDepth == 16) || (bitDepth == 32)) {
+			buildPlan(image, referenceImage);
+			// Virtual stacks would silently discard in-place changes
+			if (streamOption || stack.isVirtual()) {
+				matchSlicesStreaming(image);
+				return;
+			}
+			matchSlicesInParallel(image);
+			ReferenceCdf.forget(image);
+			image.changes = true;
+			image.updateAndDraw();
+			IJ.showMessage("Stack_Histogram_Matcher", "Histogram matching applied!");
+			return;
+		}
+		if (referenceImage != image || !referenceSourceOption.equals(REFERENCE_SOURCES[0]))
+			IJ.log("Stack_Histogram_Matcher: RGB stacks are matched to the first slice of this stack;"
+					+ " the chosen reference is ignored.");
+		if (allSeriesOption && (image.getNChannels() > 1 || image.getNFrames() > 1))
+			IJ.log("Stack_Histogram_Matcher: RGB stacks are matched in the current channel and frame only;"
+					+ " \"Match all channels and frames\" is ignored.");
 		// Get reference histogram from first slice
 		int stackIx = image.getStackIndex(currentChannel, 1, currentFrame);
-		ImageStack stack = image.getStack();
 		ImageProcessor ip = stack.getProcessor(stackIx);
-		int[] referenceHistogram = ip.getHistogram();
+		int[] firstHistogram = ip.getHistogram();
+		long[] referenceHistogram = new long[firstHistogram.length];
+		for (int i = 0; i < firstHistogram.length; ++i)
+			referenceHistogram[i] = firstHistogram[i];
 		// Apply histogram to subsequent slices
 		for (int sliceIx = 2; sliceIx <= image.getNSlices(); ++sliceIx) {
 			stackIx = image.getStackIndex(currentChannel, sliceIx, currentFrame);
 			ip = stack.getProcessor(stackIx);
 			int[] sliceHistogram = ip.getHistogram();
 			int[] intensityMap = new int[sliceHistogram.length];
-			int refVal = -1;
-			int sliceVal = 0;
-			int refCount = 0; // cumulative count of pixels in reference image
-			int sliceCount = 0; // cumulative count of pixels in subject image
-			while (sliceVal < sliceHistogram.length) {
-				sliceCount += sliceHistogram[sliceVal];
-				while ((refCount < sliceCount) && (refVal < referenceHistogram.length)) {
-					refVal++;
-					refCount += referenceHistogram[refVal];
-				}
-				intensityMap[sliceVal] = refVal;
-				sliceVal++;
-			}
+			long nPixels = ip.getPixelCount();
+			computeIntensityMap(referenceHistogram, nPixels, sliceHistogram, nPixels, intensityMap);
 			// Apply intensity mapping to subject slice
 			for (int x = 0; x < ip.getWidth(); ++x) {
 				for (int y = 0; y < ip.getHeight(); ++y) {
@@ -51,4 +115,660 @@ public class Stack_Histogram_Matcher implements PlugIn
 		IJ.showMessage("Stack_Histogram_Matcher", "Histogram matching applied!");
 	}
 
+	// Returns the image that supplies the reference distribution,
+	// or null if the dialog was canceled.
+	ImagePlus showDialog(ImagePlus image)
+	{
+		int[] wList = WindowManager.getIDList();
+		int nImages = (wList == null) ? 0 : wList.length;
+		String[] choices = new String[nImages + 1];
+		choices[0] = THIS_STACK;
+		for (int i = 0; i < nImages; ++i) {
+			ImagePlus imp = WindowManager.getImage(wList[i]);
+			choices[i + 1] = (imp == null) ? "" : imp.getTitle();
+		}
+		GenericDialog gd = new GenericDialog("Stack Histogram Matcher");
+		gd.addChoice("Reference image:", choices, referenceOption);
+		gd.addChoice("Reference:", REFERENCE_SOURCES, referenceSourceOption);
+		gd.addNumericField("Reference slice:", referenceSliceOption, 0);
+		gd.addNumericField("Reference frame (pooled):", referenceFrameOption, 0);
+		gd.addCheckbox("Match all channels and frames", allSeriesOption);
+		gd.addNumericField("Histogram bins (32-bit only):", floatBinsOption, 0);
+		gd.addCheckbox("Stream to disk (always on for virtual stacks)", streamOption);
+		gd.addChoice("Output:", OUTPUT_FORMATS, outputOption);
+		// includes the slice being written, so k reads k - 1 ahead
+		gd.addNumericField("Slices in flight:", inFlightOption, 0);
+		gd.addCheckbox("Rebuild cached reference histograms", rebuildOption);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return null;
+		int choice = gd.getNextChoiceIndex();
+		referenceOption = choices[choice];
+		referenceSourceOption = gd.getNextChoice();
+		referenceSliceOption = Math.max(1, (int)gd.getNextNumber());
+		referenceFrameOption = Math.max(1, (int)gd.getNextNumber());
+		allSeriesOption = gd.getNextBoolean();
+		floatBinsOption = Math.max(2, (int)gd.getNextNumber());
+		streamOption = gd.getNextBoolean();
+		outputOption = gd.getNextChoice();
+		inFlightOption = Math.max(1, (int)gd.getNextNumber());
+		rebuildOption = gd.getNextBoolean();
+		if (rebuildOption)
+			ReferenceCdf.clear();
+		if (choice == 0)
+			return image;
+		ImagePlus referenceImage = WindowManager.getImage(wList[choice - 1]);
+		if ((referenceImage == null) || (referenceImage.getBitDepth() != image.getBitDepth())) {
+			IJ.error("Stack_Histogram_Matcher", "Reference image must have the same bit depth");
+			return null;
+		}
+		return referenceImage;
+	}
+
+	// Fill planIndices/planReferences for the current channel and frame,
+	// or for every channel and frame. The reference for each Z series is
+	// computed up front, in parallel over the channel x frame grid.
+	void buildPlan(final ImagePlus image, final ImagePlus referenceImage)
+	{
+		final int nChannels = allSeriesOption ? image.getNChannels() : 1;
+		final int nFrames = allSeriesOption ? image.getNFrames() : 1;
+		final int firstChannel = allSeriesOption ? 1 : image.getChannel();
+		final int firstFrame = allSeriesOption ? 1 : image.getFrame();
+		final int nSlices = image.getNSlices();
+		final boolean pooled = referenceSourceOption.equals(REFERENCE_SOURCES[2]);
+		int slice = referenceSourceOption.equals(REFERENCE_SOURCES[1]) ? referenceSliceOption : 1;
+		final int referenceSlice = pooled ? 0 : Math.min(slice, referenceImage.getNSlices());
+		final int referenceFrame = Math.min(referenceFrameOption, referenceImage.getNFrames());
+		final ReferenceCdf[] seriesReferences = new ReferenceCdf[nChannels * nFrames];
+		final AtomicInteger nextSeries = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray(
+				Math.min(Prefs.getThreads(), seriesReferences.length));
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int s = nextSeries.getAndIncrement(); s < seriesReferences.length;
+							s = nextSeries.getAndIncrement())
+					{
+						int channel = firstChannel + s % nChannels;
+						int frame = firstFrame + s / nChannels;
+						seriesReferences[s] = ReferenceCdf.get(referenceImage,
+								Math.min(channel, referenceImage.getNChannels()),
+								pooled ? referenceFrame : Math.min(frame, referenceImage.getNFrames()),
+								referenceSlice, floatBinsOption);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		// The reference slice of this stack stays as it is
+		int skipSlice = ((referenceImage == image) && !pooled) ? referenceSlice : 0;
+		planIndices = new int[seriesReferences.length * nSlices];
+		planReferences = new ReferenceCdf[planIndices.length];
+		int i = 0;
+		for (int f = 0; f < nFrames; ++f) {
+			for (int z = 1; z <= nSlices; ++z) {
+				for (int c = 0; c < nChannels; ++c) {
+					planIndices[i] = image.getStackIndex(firstChannel + c, z, firstFrame + f);
+					if (z != skipSlice)
+						planReferences[i] = seriesReferences[f * nChannels + c];
+					++i;
+				}
+			}
+		}
+		planChannels = nChannels;
+		planFrames = nFrames;
+	}
+
+	// Remap every slice in the plan, working directly on the primitive
+	// pixel arrays. Each thread keeps its own histogram and map buffers.
+	void matchSlicesInParallel(final ImagePlus image)
+	{
+		final ImageStack stack = image.getStack();
+		final int nPlanned = planIndices.length;
+		final AtomicInteger nextSlice = new AtomicInteger(0);
+		final AtomicInteger slicesDone = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					int[] sliceHistogram = new int[0];
+					int[] intensityMap = new int[0];
+					for (int i = nextSlice.getAndIncrement(); i < nPlanned; i = nextSlice.getAndIncrement()) {
+						ReferenceCdf reference = planReferences[i];
+						if (reference != null) {
+							int nBins = reference.getBinCount();
+							if (sliceHistogram.length != nBins) {
+								sliceHistogram = new int[nBins];
+								intensityMap = new int[nBins];
+							}
+							matchSlice(stack.getPixels(planIndices[i]), reference,
+									sliceHistogram, intensityMap);
+						}
+						IJ.showProgress(slicesDone.incrementAndGet(), nPlanned);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+
+	// Read, remap and write every slice in the plan without loading
+	// the whole stack. Reference slices are copied unchanged.
+	void matchSlicesStreaming(ImagePlus image)
+	{
+		String directory;
+		String name;
+		boolean sequence = outputOption.equals(OUTPUT_FORMATS[1]);
+		if (sequence) {
+			directory = IJ.getDirectory("Output directory for matched slices");
+			name = image.getShortTitle();
+		}
+		else {
+			SaveDialog sd = new SaveDialog("Save matched stack", image.getShortTitle() + "_matched", ".tif");
+			directory = sd.getDirectory();
+			name = sd.getFileName();
+		}
+		if ((directory == null) || (name == null))
+			return;
+		MatchedSliceStream stream = new MatchedSliceStream(image,
+				planIndices, planReferences, inFlightOption);
+		int nImages = stream.getSize();
+		boolean hyperstack = (planChannels > 1) || (planFrames > 1);
+		stream.start();
+		try {
+			if (sequence) {
+				for (int i = 1; i <= nImages; ++i) {
+					int[] czt = image.convertIndexToPosition(planIndices[i - 1]);
+					String sliceName = name;
+					if (hyperstack)
+						sliceName += "_c" + czt[0] + "_t" + IJ.pad(czt[2], 4) + "_z";
+					sliceName += IJ.pad(czt[1], 4) + ".tif";
+					ImagePlus slice = new ImagePlus(sliceName, stream.getProcessor(i));
+					slice.setCalibration(image.getCalibration());
+					if (!new FileSaver(slice).saveAsTiff(directory + sliceName))
+						return;
+					IJ.showProgress(i, nImages);
+				}
+			}
+			else {
+				// TiffEncoder pulls slices from the stream in order
+				FileInfo fi = image.getFileInfo();
+				fi.fileName = name;
+				fi.directory = directory;
+				fi.nImages = nImages;
+				fi.sliceLabels = null;
+				fi.description = "ImageJ=" + ImageJ.VERSION + "\nimages=" + nImages
+						+ "\nchannels=" + planChannels
+						+ "\nslices=" + image.getNSlices()
+						+ "\nframes=" + planFrames
+						+ (hyperstack ? "\nhyperstack=true" : "")
+						+ "\nunit=" + fi.unit
+						+ "\nspacing=" + fi.pixelDepth + "\n";
+				if (nImages > 1) {
+					fi.pixels = null;
+					fi.virtualStack = stream;
+				}
+				else
+					fi.pixels = stream.getPixels(1);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(directory + name)));
+				try {
+					new TiffEncoder(fi).write(out);
+				}
+				finally {
+					out.close();
+				}
+			}
+			IJ.showStatus("Histogram matching written to " + directory + name);
+		}
+		catch (IOException e) {
+			IJ.error("Stack_Histogram_Matcher", "Could not write output: " + e.getMessage());
+		}
+		catch (RuntimeException e) {
+			IJ.handleException(e);
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	static void matchSlice(Object pixels, ReferenceCdf reference,
+			int[] sliceHistogram, int[] intensityMap)
+	{
+		if (pixels instanceof byte[])
+			matchSlice((byte[])pixels, reference, sliceHistogram, intensityMap);
+		else if (pixels instanceof short[])
+			matchSlice((short[])pixels, reference, sliceHistogram, intensityMap);
+		else
+			matchSlice((float[])pixels, reference, sliceHistogram);
+	}
+
+	static void matchSlice(byte[] pixels, ReferenceCdf reference,
+			int[] sliceHistogram, int[] intensityMap)
+	{
+		Arrays.fill(sliceHistogram, 0);
+		for (int i = 0; i < pixels.length; ++i)
+			sliceHistogram[pixels[i] & 0xff]++;
+		computeIntensityMap(reference.histogram, reference.total,
+				sliceHistogram, pixels.length, intensityMap);
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] = (byte)clamp(intensityMap[pixels[i] & 0xff], 255);
+	}
+
+	static void matchSlice(short[] pixels, ReferenceCdf reference,
+			int[] sliceHistogram, int[] intensityMap)
+	{
+		Arrays.fill(sliceHistogram, 0);
+		for (int i = 0; i < pixels.length; ++i)
+			sliceHistogram[pixels[i] & 0xffff]++;
+		computeIntensityMap(reference.histogram, reference.total,
+				sliceHistogram, pixels.length, intensityMap);
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] = (short)clamp(intensityMap[pixels[i] & 0xffff], 65535);
+	}
+
+	// Float slices are binned linearly between their own min and max, and
+	// each value is mapped through its interpolated slice CDF onto the
+	// interpolated reference quantiles. NaNs are left untouched.
+	static void matchSlice(float[] pixels, ReferenceCdf reference, int[] sliceHistogram)
+	{
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < pixels.length; ++i) {
+			float val = pixels[i];
+			if (val < min) min = val;
+			if (val > max) max = val;
+		}
+		if (!(max > min)) { // empty, constant or all NaN
+			float median = reference.quantile(0.5);
+			for (int i = 0; i < pixels.length; ++i)
+				if (pixels[i] == pixels[i])
+					pixels[i] = median;
+			return;
+		}
+		int nBins = sliceHistogram.length;
+		double binScale = nBins / ((double)max - min);
+		Arrays.fill(sliceHistogram, 0);
+		long total = 0;
+		for (int i = 0; i < pixels.length; ++i) {
+			float val = pixels[i];
+			if (val != val) continue; // NaN
+			sliceHistogram[Math.min((int)((val - min) * binScale), nBins - 1)]++;
+			total++;
+		}
+		// cumulative count below each bin
+		long[] cumulative = new long[nBins];
+		long count = 0;
+		for (int b = 0; b < nBins; ++b) {
+			cumulative[b] = count;
+			count += sliceHistogram[b];
+		}
+		for (int i = 0; i < pixels.length; ++i) {
+			float val = pixels[i];
+			if (val != val) continue;
+			double pos = (val - min) * binScale;
+			int bin = Math.min((int)pos, nBins - 1);
+			double fraction = Math.min(pos - bin, 1.0);
+			double cdf = (cumulative[bin] + fraction * sliceHistogram[bin]) / total;
+			pixels[i] = reference.quantile(cdf);
+		}
+	}
+
+	// Same clamping as ImageProcessor.putPixel()
+	static int clamp(int val, int max) {
+		if (val < 0) return 0;
+		if (val > max) return max;
+		return val;
+	}
+
+	// Map each slice intensity to the reference intensity with
+	// the same cumulative fraction of pixels.
+	static void computeIntensityMap(long[] referenceHistogram, long referenceTotal,
+			int[] sliceHistogram, long sliceTotal, int[] intensityMap)
+	{
+		int refVal = -1;
+		int sliceVal = 0;
+		long refCount = 0; // cumulative count of pixels in reference image
+		long sliceCount = 0; // cumulative count of pixels in subject image
+		while (sliceVal < sliceHistogram.length) {
+			sliceCount += sliceHistogram[sliceVal];
+			// refCount/referenceTotal < sliceCount/sliceTotal, without rounding
+			while ((refCount * sliceTotal < sliceCount * referenceTotal)
+					&& (refVal < referenceHistogram.length - 1)) {
+				refVal++;
+				refCount += referenceHistogram[refVal];
+			}
+			intensityMap[sliceVal] = refVal;
+			sliceVal++;
+		}
+	}
+
+	/**
+	 * Histogram-matched view of the planned slices, computed on the fly.
+	 * A reader thread loads slices in order, worker threads remap them,
+	 * and the consumer takes them in order through getProcessor(), which
+	 * lets TiffEncoder write a multi-page TIFF straight from the pipeline.
+	 * At most maxInFlight slices are held in memory at any time, counting
+	 * the one last returned by getProcessor(), so a value of k reads at
+	 * most k - 1 slices ahead of the consumer.
+	 */
+	static class MatchedSliceStream extends VirtualStack {
+		private static final Object[] END = new Object[0];
+
+		final ImagePlus source;
+		final int[] stackIndices;
+		final ReferenceCdf[] references;
+		final Semaphore inFlight;
+		final BlockingQueue<Object[]> toRemap;
+		final Map<Integer, ImageProcessor> remapped = new HashMap<Integer, ImageProcessor>();
+		Thread[] threads;
+		volatile Throwable failure;
+		int currentSlice = 0;
+		ImageProcessor currentProcessor;
+
+		MatchedSliceStream(ImagePlus source, int[] stackIndices,
+				ReferenceCdf[] references, int maxInFlight)
+		{
+			super(source.getWidth(), source.getHeight(), source.getStack().getColorModel(), null);
+			this.source = source;
+			this.stackIndices = stackIndices;
+			this.references = references;
+			inFlight = new Semaphore(maxInFlight);
+			toRemap = new LinkedBlockingQueue<Object[]>(); // bounded by inFlight
+		}
+
+		void start()
+		{
+			threads = new Thread[1 + Math.max(1, Prefs.getThreads() - 1)];
+			threads[0] = new Thread("Stack_Histogram_Matcher reader") {
+				public void run() {
+					try {
+						ImageStack stack = source.getStack();
+						for (int i = 0; i < stackIndices.length; ++i) {
+							inFlight.acquire();
+							ImageProcessor ip = stack.getProcessor(stackIndices[i]);
+							if (!stack.isVirtual())
+								ip = ip.duplicate(); // leave the source untouched
+							toRemap.put(new Object[] {i + 1, ip});
+						}
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					catch (Throwable e) {
+						fail(e);
+					}
+					for (int t = 1; t < threads.length; ++t)
+						toRemap.add(END);
+				}
+			};
+			for (int t = 1; t < threads.length; ++t) {
+				threads[t] = new Thread("Stack_Histogram_Matcher worker " + t) {
+					public void run() {
+						int[] sliceHistogram = new int[0];
+						int[] intensityMap = new int[0];
+						try {
+							for (Object[] item = toRemap.take(); item != END; item = toRemap.take()) {
+								int sliceIx = (Integer)item[0];
+								ImageProcessor ip = (ImageProcessor)item[1];
+								ReferenceCdf reference = references[sliceIx - 1];
+								if (reference != null) {
+									int nBins = reference.getBinCount();
+									if (sliceHistogram.length != nBins) {
+										sliceHistogram = new int[nBins];
+										intensityMap = new int[nBins];
+									}
+									matchSlice(ip.getPixels(), reference, sliceHistogram, intensityMap);
+								}
+								synchronized (MatchedSliceStream.this) {
+									remapped.put(sliceIx, ip);
+									MatchedSliceStream.this.notifyAll();
+								}
+							}
+						}
+						catch (InterruptedException e) {
+						}
+						catch (Throwable e) {
+							fail(e);
+						}
+					}
+				};
+			}
+			for (Thread thread : threads)
+				thread.start();
+		}
+
+		synchronized void fail(Throwable e) {
+			if (failure == null)
+				failure = e;
+			notifyAll();
+		}
+
+		void close() {
+			for (Thread thread : threads)
+				thread.interrupt();
+		}
+
+		public int getSize() {
+			return stackIndices.length;
+		}
+
+		public String getSliceLabel(int n) {
+			return null;
+		}
+
+		// Slices must be requested in increasing order; the most recent
+		// one may be requested again.
+		public synchronized ImageProcessor getProcessor(int n) {
+			if (n == currentSlice)
+				return currentProcessor;
+			if (n < currentSlice)
+				throw new IllegalArgumentException("Slice " + n + " was already released");
+			// the previous slice is done with; let the reader fetch another
+			if (currentProcessor != null) {
+				currentProcessor = null;
+				inFlight.release();
+			}
+			try {
+				while (!remapped.containsKey(n) && (failure == null))
+					wait();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			if (failure != null)
+				throw new RuntimeException(failure);
+			currentProcessor = remapped.remove(n);
+			currentSlice = n;
+			return currentProcessor;
+		}
+	}
+
+	/**
+	 * Cumulative distribution of a reference slice, or of all Z slices of
+	 * one frame pooled together. Integer images keep the exact histogram;
+	 * 32-bit images keep a table of evenly spaced quantiles. Instances are
+	 * cached per reference image, channel, frame and slice, so repeated
+	 * runs against the same reference skip the scan. An entry is only
+	 * reused while the stack still holds the same pixel arrays and the
+	 * image's changes flag is as it was; the arrays are held weakly, so
+	 * closed images are not kept in memory. Edits that leave an already
+	 * changed image's arrays in place are not noticed, which is what
+	 * "Rebuild cached reference histograms" is for.
+	 */
+	static class ReferenceCdf {
+		private static final int CACHE_SIZE = 16;
+		private static final Map<String, ReferenceCdf> cache =
+			new LinkedHashMap<String, ReferenceCdf>(CACHE_SIZE, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, ReferenceCdf> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			};
+
+		private static final int POOLED_FLOAT_BINS = 65536;
+
+		WeakReference<?>[] slices; // the pixel arrays this was computed from
+		boolean changes; // the image's changes flag at the time
+		long[] histogram; // 8-bit and 16-bit; pooled counts can pass 2^31
+		long total;
+		float[] quantiles; // 32-bit
+
+		// slice 0 pools every Z slice of the given channel and frame
+		static ReferenceCdf get(ImagePlus referenceImage, int channel, int frame,
+				int slice, int floatBins)
+		{
+			ImageStack stack = referenceImage.getStack();
+			String key = referenceImage.getID() + ":" + channel + ":" + frame + ":" + slice;
+			if (referenceImage.getBitDepth() == 32)
+				key += ":" + floatBins;
+			ReferenceCdf result;
+			synchronized (cache) {
+				result = cache.get(key);
+			}
+			// Virtual stacks re-read slices from disk, so there is no array to compare
+			if ((result != null) && stack.isVirtual())
+				return result;
+			int first = (slice == 0) ? 1 : slice;
+			int last = (slice == 0) ? referenceImage.getNSlices() : slice;
+			Object[] pixels = new Object[last - first + 1];
+			for (int z = first; z <= last; ++z)
+				pixels[z - first] = stack.getPixels(referenceImage.getStackIndex(channel, z, frame));
+			if ((result != null) && result.computedFrom(pixels, referenceImage.changes))
+				return result;
+			// computed outside the lock, so different references build in parallel
+			result = new ReferenceCdf(pixels, floatBins);
+			result.slices = new WeakReference<?>[pixels.length];
+			for (int i = 0; i < pixels.length; ++i)
+				result.slices[i] = new WeakReference<Object>(pixels[i]);
+			result.changes = referenceImage.changes;
+			synchronized (cache) {
+				cache.put(key, result);
+			}
+			return result;
+		}
+
+		boolean computedFrom(Object[] pixels, boolean changes)
+		{
+			if ((changes != this.changes) || (pixels.length != slices.length))
+				return false;
+			for (int i = 0; i < pixels.length; ++i)
+				if (slices[i].get() != pixels[i])
+					return false;
+			return true;
+		}
+
+		// Drops the entries of an image whose pixels were changed in place
+		static void forget(ImagePlus image)
+		{
+			String prefix = image.getID() + ":";
+			synchronized (cache) {
+				for (Iterator<String> keys = cache.keySet().iterator(); keys.hasNext(); )
+					if (keys.next().startsWith(prefix))
+						keys.remove();
+			}
+		}
+
+		static void clear()
+		{
+			synchronized (cache) {
+				cache.clear();
+			}
+		}
+
+		ReferenceCdf(Object[] pixels, int floatBins)
+		{
+			if (pixels[0] instanceof byte[]) {
+				histogram = new long[256];
+				for (Object slice : pixels) {
+					byte[] p = (byte[])slice;
+					for (int i = 0; i < p.length; ++i)
+						histogram[p[i] & 0xff]++;
+					total += p.length;
+				}
+			}
+			else if (pixels[0] instanceof short[]) {
+				histogram = new long[65536];
+				for (Object slice : pixels) {
+					short[] p = (short[])slice;
+					for (int i = 0; i < p.length; ++i)
+						histogram[p[i] & 0xffff]++;
+					total += p.length;
+				}
+			}
+			else if (pixels.length == 1)
+				computeExactQuantiles((float[])pixels[0], floatBins);
+			else
+				computePooledQuantiles(pixels, floatBins);
+		}
+
+		private void computeExactQuantiles(float[] p, int floatBins)
+		{
+			float[] sorted = new float[p.length];
+			int n = 0;
+			for (int i = 0; i < p.length; ++i)
+				if (p[i] == p[i]) // skip NaN
+					sorted[n++] = p[i];
+			Arrays.sort(sorted, 0, n);
+			total = n;
+			quantiles = new float[floatBins + 1];
+			for (int q = 0; q <= floatBins; ++q)
+				quantiles[q] = (n == 0) ? 0 : sorted[(int)((long)q * (n - 1) / floatBins)];
+		}
+
+		// Pooled float data may not fit in memory as one sorted array, so
+		// quantiles are interpolated from a fine histogram instead.
+		private void computePooledQuantiles(Object[] pixels, int floatBins)
+		{
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (Object slice : pixels) {
+				float[] p = (float[])slice;
+				for (int i = 0; i < p.length; ++i) {
+					if (p[i] < min) min = p[i];
+					if (p[i] > max) max = p[i];
+				}
+			}
+			quantiles = new float[floatBins + 1];
+			if (!(max > min)) { // constant or all NaN
+				Arrays.fill(quantiles, (min <= max) ? min : 0);
+				return;
+			}
+			long[] fine = new long[POOLED_FLOAT_BINS];
+			double binScale = POOLED_FLOAT_BINS / ((double)max - min);
+			for (Object slice : pixels) {
+				float[] p = (float[])slice;
+				for (int i = 0; i < p.length; ++i) {
+					if (p[i] != p[i]) continue; // NaN
+					fine[Math.min((int)((p[i] - min) * binScale), POOLED_FLOAT_BINS - 1)]++;
+					total++;
+				}
+			}
+			int bin = 0;
+			long below = 0; // count in bins before bin
+			for (int q = 0; q <= floatBins; ++q) {
+				double rank = (double)q * (total - 1) / floatBins;
+				while ((bin < POOLED_FLOAT_BINS - 1) && (below + fine[bin] <= rank))
+					below += fine[bin++];
+				double fraction = (fine[bin] == 0) ? 0 : (rank - below) / fine[bin];
+				quantiles[q] = (float)(min + (bin + Math.min(fraction, 1.0)) / binScale);
+			}
+		}
+
+		int getBinCount() {
+			return (histogram != null) ? histogram.length : quantiles.length - 1;
+		}
+
+		// Reference value at cumulative fraction cdf, linearly interpolated
+		float quantile(double cdf) {
+			double pos = cdf * (quantiles.length - 1);
+			int q = (int)pos;
+			if (q >= quantiles.length - 1)
+				return quantiles[quantiles.length - 1];
+			if (q < 0)
+				return quantiles[0];
+			double fraction = pos - q;
+			return (float)((1 - fraction) * quantiles[q] + fraction * quantiles[q + 1]);
+		}
+	}
+
 }